@@ -0,0 +1,75 @@
+/**
+ * Asynchronous communication interface, for user agents and bots that keep many requests in flight
+ * every request returns at once, with a future completed when the reply arrives
+ *
+ * the futures are completed by the thread listening to the server,
+ * so actions chained to them must not wait for other replies: chain them with the *Async methods of CompletableFuture instead
+ */
+
+package csci4311.chatExtra;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+public interface AsyncMsgpClient {
+    /**
+     * Encodes a user join request.
+     *
+     * @param user  user name
+     * @param group group name
+     * @return      reply code, as per the spec
+     */
+    CompletableFuture<Integer> joinAsync(String user, String group);
+    /**
+     * Encodes a user leave request.
+     *
+     * @param user  user name
+     * @param group group name
+     * @return      reply code, as per the spec
+     */
+    CompletableFuture<Integer> leaveAsync(String user, String group);
+    /**
+     * Encodes the sending of a message.
+     *
+     * @param message   message content
+     * @return reply code, as per the spec
+     */
+    CompletableFuture<Integer> sendAsync(MsgpMessage message);
+    /**
+     * Encodes the sending of several messages in one request.
+     *
+     * @param messages  the messages, with their senders and recipients
+     * @return          reply code of each message, in order
+     */
+    CompletableFuture<int[]> sendBatchAsync(List<MsgpMessage> messages);
+    /**
+     * Requests the list of groups.
+     *
+     * @return      existing groups; null of none
+     */
+    CompletableFuture<List<String>> groupsAsync();
+    /**
+     * Requests the list of users in a given group.
+     *
+     * @param   group   group name
+     * @return          list of existing users in the group; null of none
+     */
+    CompletableFuture<List<String>> usersAsync(String group);
+    /**
+     * Requests the history of chat message of a group.
+     *
+     * @param   group   group name
+     * @return          list of all messages sent to the group
+     */
+    CompletableFuture<List<MsgpMessage>> historyAsync(String group);
+    /**
+     * Requests the messages of a group newer than a given one, numbered with getSeq.
+     *
+     * @param   group   group name
+     * @param   since   sequence number of the last message the caller has, 0 for all
+     * @param   limit   maximum number of messages
+     * @return          list of the messages, oldest first
+     */
+    CompletableFuture<List<MsgpMessage>> historyAsync(String group, long since, int limit);
+}
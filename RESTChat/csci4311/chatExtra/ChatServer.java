@@ -4,6 +4,33 @@
  * maintains the information needed for the operation of the server:
  * 		a table of groups in the system
  * 		a table of users in the system and their output streams
+ * 		the message histories of groups and users, bounded by retention limits which can be set with
+ * 			-Dchat.history.maxMessages, -Dchat.history.maxBytes and -Dchat.history.maxAgeSeconds
+ * 			and kept in memory-mapped segment files instead of the heap if -Dchat.history.offHeapDir is set
+ * 		a journal of every change to groups and histories, replayed on startup,
+ * 			set with -Dchat.journal.file (empty to disable) and -Dchat.journal.sync
+ * 		a snapshot of the state, taken whenever the journal segment outgrows -Dchat.journal.snapshotBytes
+ * 		group histories loaded on demand: when journaling, a group's history is read from the journal the first time
+ * 			it is needed, and the least recently used histories are unloaded while the loaded ones
+ * 			take more than -Dchat.history.memoryBudget bytes
+ *
+ * 		msgp connections served by a thread each (TextMsgpServer), or with -Dchat.frontEnd=nio
+ * 			by a few event loops (NioMsgpServer, -Dchat.nio.threads loops, one per core by default)
+ * 			with -Dchat.frontEnd=virtual, connections and REST requests run on virtual threads,
+ * 			if the JVM has them (Java 21 and later), and on platform threads otherwise
+ * 		msgp over WebSocket for browser-style clients, on a port of its own (WebSocketServer, -Dchat.ws.threads loops)
+ * 		a bounded OutboundQueue per msgp connection for the messages pushed to it, reported by GET /connections
+ * 		an EventStream per REST user subscribed to GET /events/<user>, in the user table in place of a socket's stream
+ *
+ * a change is applied and journaled under the lock of the Group or HistoryBuffer it modifies,
+ * so the journal records the changes to each of them in the order they were applied
+ *
+ * the tables are ConcurrentHashMaps since they are shared by every TextMsgpServer thread
+ * and every RestServer handler; per-group state is guarded by the Group object itself
+ *
+ * the user directory, the group directory and the member list of each group have version counters,
+ * which RestServer turns into ETags; a counter is incremented after the change it counts,
+ * so a response built after reading a version is never older than that version
  */
 
 package csci4311.chatExtra;
@@ -11,22 +38,86 @@ package csci4311.chatExtra;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatServer implements MessageServer {
 
+	//** retention limits of every group and user history **\\
+	private static final int HISTORY_MAX_MESSAGES = Integer.getInteger( "chat.history.maxMessages", 1000 );
+	private static final long HISTORY_MAX_BYTES = Long.getLong( "chat.history.maxBytes", 1L << 20 );
+	private static final long HISTORY_MAX_AGE_MILLIS = Long.getLong( "chat.history.maxAgeSeconds", 24 * 3600 ) * 1000;
+	private static final String HISTORY_OFF_HEAP_DIR = System.getProperty( "chat.history.offHeapDir", "" );
+	private static final int HISTORY_SEGMENT_BYTES = Integer.getInteger( "chat.history.segmentBytes", 64 << 20 );
+	private static final long HISTORY_MEMORY_BUDGET = Long.getLong( "chat.history.memoryBudget", 256L << 20 );
+
+	// a group history is not unloaded until it has been unused for this long
+	private static final long UNLOAD_IDLE_MILLIS = 5000;
+
+	// the history of the unknown users, shared and never written to
+	private static final HistoryBuffer NO_HISTORY = new HistoryBuffer( 0, 0, 0, null );
+
+	//** front end settings **\\
+	private static final String FRONT_END = System.getProperty( "chat.frontEnd", "threads" );
+	private static final int NIO_THREADS = Integer.getInteger( "chat.nio.threads", Runtime.getRuntime().availableProcessors() );
+	private static final int WS_THREADS = Integer.getInteger( "chat.ws.threads", Runtime.getRuntime().availableProcessors() );
+
+	//** journal settings **\\
+	private static final String JOURNAL_FILE = System.getProperty( "chat.journal.file", "chat.journal" );
+	private static final boolean JOURNAL_SYNC = Boolean.parseBoolean( System.getProperty( "chat.journal.sync", "true" ) );
+	private static final long SNAPSHOT_BYTES = Long.getLong( "chat.journal.snapshotBytes", 16L << 20 );
+
 	//** instance variables **\\
 	
-	// the HashMap of active groups and their corresponding Group object
-	private HashMap<String,Group> groupTable;
+	// the map of active groups and their corresponding Group object
+	private ConcurrentHashMap<String,Group> groupTable;
 	
-	// the HashMap of active users and their corresponding DataOutputStream (for the sending of messages)
-	private HashMap<String, DataOutputStream> userTable;
+	// the map of active users and their corresponding DataOutputStream (for the sending of messages)
+	private ConcurrentHashMap<String, DataOutputStream> userTable;
 	
-	// the HashMap of active users and their corresponding message History
-	private HashMap<String, ArrayList<String>> userHistoryTable;
+	// the map of active users and their corresponding message History
+	private ConcurrentHashMap<String, HistoryBuffer> userHistoryTable;
+
+	// the reverse index of users and the set of groups they are members of
+	private ConcurrentHashMap<String, Set<String>> userGroupTable;
+
+	// the callbacks waiting for the next message of a history, by target: #<group> or @<user>
+	private ConcurrentHashMap<String, ArrayList<Runnable>> historyWaiters;
+
+	// the dictionary of user IDs used by the group membership bitmaps
+	private NameDictionary userIds;
+
+	// the versions of the user directory and of the group directory
+	private AtomicLong usersVersion;
+	private AtomicLong groupsVersion;
+
+	// the off-heap store shared by all histories, null if histories are kept on the heap
+	private HistoryStore historyStore;
+
+	// the groups whose history is loaded and the time each was last used, least recently used first
+	// guarded by its own lock, which is taken after the lock of a group, never before
+	private LinkedHashMap<Group, Long> loadedGroups;
+
+	// placeholder stream for users without a socket (REST users) until they subscribe to their events,
+	// ConcurrentHashMap does not accept null values
+	private static final DataOutputStream NO_STREAM = new DataOutputStream( OutputStream.nullOutputStream() );
 
 	// the RestServer object to handle Rest requests
 	private RestServer restServer;
+
+	// the WebSocketServer object to handle WebSocket connections
+	private WebSocketServer webSocketServer;
+
+	// runs the background tasks: evicting expired messages and taking snapshots
+	private ScheduledExecutorService maintenance;
+
+	// the journal that records every change, null while the journal is being replayed or if disabled
+	private MessageJournal journal;
+
+	// runs connections and REST requests on virtual threads, null to use platform threads
+	private ExecutorService taskExecutor;
 	
 	
 
@@ -35,16 +126,71 @@ public class ChatServer implements MessageServer {
 	 * constructor
 	 * 
 	 * @param welcomeSocket the socket to listen to connection request 
+	 * @param restPort 		the port of the REST server
+	 * @param webSocketPort the port of the WebSocket server
 	 **/ 
-	public ChatServer(ServerSocket welcomeSocket, int restPort) throws Exception
+	public ChatServer(ServerSocket welcomeSocket, int restPort, int webSocketPort) throws Exception
 	{
 		Socket connectionSocket = null;
-		groupTable = new HashMap<String,Group>();
-		userTable = new HashMap<String, DataOutputStream>();
-		userHistoryTable = new HashMap<String, ArrayList<String>>();
+		groupTable = new ConcurrentHashMap<String,Group>();
+		userTable = new ConcurrentHashMap<String, DataOutputStream>();
+		userHistoryTable = new ConcurrentHashMap<String, HistoryBuffer>();
+		userGroupTable = new ConcurrentHashMap<String, Set<String>>();
+		historyWaiters = new ConcurrentHashMap<String, ArrayList<Runnable>>();
+		userIds = new NameDictionary();
+		usersVersion = new AtomicLong();
+		groupsVersion = new AtomicLong();
+		loadedGroups = new LinkedHashMap<Group, Long>( 16, 0.75f, true );
+		if ( !HISTORY_OFF_HEAP_DIR.isEmpty() )
+			historyStore = new HistoryStore( Paths.get( HISTORY_OFF_HEAP_DIR ), HISTORY_SEGMENT_BYTES );
+
+		// rebuild groups and histories from the snapshot and journal, then journal every change from now on
+		// the recovered group histories stay on disk until they are needed
+		if ( !JOURNAL_FILE.isEmpty() )
+		{
+			journal = new MessageJournal( JOURNAL_FILE, JOURNAL_SYNC, this );
+			for ( Group g : groupTable.values() )
+			{
+				HistoryBuffer history = g.getHistory();
+				g.setHistory( null );
+				if ( history != null )
+					history.clear();
+			}
+			synchronized( loadedGroups )
+			{
+				loadedGroups.clear();
+			}
+		}
+
+		// evict expired messages and unload cold histories once a second, and check whether a snapshot is due every five, on a daemon thread
+		maintenance = Executors.newSingleThreadScheduledExecutor( r -> {
+			Thread t = new Thread( r, "chat-maintenance" );
+			t.setDaemon( true );
+			return t;
+		});
+		maintenance.scheduleWithFixedDelay( this::evictExpiredHistory, 1, 1, TimeUnit.SECONDS );
+		if ( journal != null )
+		{
+			maintenance.scheduleWithFixedDelay( this::unloadColdHistories, 1, 1, TimeUnit.SECONDS );
+			maintenance.scheduleWithFixedDelay( this::snapshotIfDue, 5, 5, TimeUnit.SECONDS );
+		}
+
+		// the executor of connections and REST requests, on virtual threads if selected and available
+		if ( FRONT_END.equals( "virtual" ) )
+			taskExecutor = newVirtualThreadExecutor();
 
 		// the RestServer object to handle Rest requests
 		restServer = new RestServer( this, restPort );
+
+		// the WebSocketServer object to handle WebSocket connections, on event loops of its own
+		webSocketServer = new WebSocketServer( this, webSocketPort, WS_THREADS );
+
+		// a socket opened from a channel is served by the non-blocking front end instead
+		if ( welcomeSocket.getChannel() != null )
+		{
+			new NioMsgpServer( this, welcomeSocket.getChannel(), NIO_THREADS ).run();
+			return;
+		}
 		
 		// While loop to handle arbitrary sequence of clients making requests
     	while(true) 
@@ -53,9 +199,16 @@ public class ChatServer implements MessageServer {
 			connectionSocket = welcomeSocket.accept();
 			System.out.println( "Client Made Connection");
 
+			// replies and pushed messages are written separately, do not let the second wait for the ack of the first
+			connectionSocket.setTcpNoDelay( true );
+
 			// create a new TextMsgpServer thread to handle communication with the newly connected client
+			// in virtual mode, the TextMsgpServer is not started itself but run by a virtual thread
 			TextMsgpServer thread = new TextMsgpServer( this, connectionSocket);
-			thread.start();
+			if ( taskExecutor != null )
+				taskExecutor.execute( thread );
+			else
+				thread.start();
     	} // end while; loop back to accept a new client connection
 	}
 
@@ -73,13 +226,26 @@ public class ChatServer implements MessageServer {
 		// read the rest port number from command-line arguments
 		// if not provided, default to 8311
 		int restPort = argv.length > 1 ? Integer.parseInt(argv[1]) : 8311 ;
+
+		// read the WebSocket port number from command-line arguments
+		// if not provided, default to 8312
+		int webSocketPort = argv.length > 2 ? Integer.parseInt(argv[2]) : 8312 ;
 		 
 		// Create the welcoming socket to listen to connection request
-   		ServerSocket welcomeSocket = new ServerSocket( port, 0);
+		// opened from a channel for the non-blocking front end
+		ServerSocket welcomeSocket;
+		if ( FRONT_END.equals( "nio" ) )
+		{
+			welcomeSocket = ServerSocketChannel.open().bind( new InetSocketAddress( port ) ).socket();
+		}
+		else
+		{
+   			welcomeSocket = new ServerSocket( port, 0);
+		}
     	System.out.println("Server Ready for Connection");
 
 		// creates a new ChatServer object to handle the rest
-		new ChatServer(welcomeSocket, restPort);
+		new ChatServer(welcomeSocket, restPort, webSocketPort);
 		
 		
 	} // end main
@@ -89,13 +255,19 @@ public class ChatServer implements MessageServer {
 	//** query methods **\\
 
 	// getter for groupTable
-	public HashMap<String,Group> getGroupTable()
+	public Map<String,Group> getGroupTable()
 	{
 		return groupTable;
 	}
 
+	// getter for the executor of connections and REST requests, null if they run on platform threads
+	public ExecutorService getTaskExecutor()
+	{
+		return taskExecutor;
+	}
+
 	// getter for userTable
-	public HashMap<String, DataOutputStream> getUserTable()
+	public Map<String, DataOutputStream> getUserTable()
 	{
 		return userTable;
 	}
@@ -113,34 +285,111 @@ public class ChatServer implements MessageServer {
 	}
 
 	
+	// getter for the version of the list of users, changed whenever a user enters or leaves the system
+	public long getUsersVersion()
+	{
+		return usersVersion.get();
+	}
+
+	// getter for the version of the list of groups, changed whenever a group is added or removed
+	public long getGroupsVersion()
+	{
+		return groupsVersion.get();
+	}
+
+	// gets the version of the list of users in a group, -1 if the group does not exist
+	public long getGroupVersion( String groupName )
+	{
+		Group temp = groupTable.get( groupName );
+		return temp != null ? temp.getVersion() : -1;
+	}
+
 	// gets the list of users in a group
 	public ArrayList<String> getMembership( String groupName )
 	{
 		return groupTable.get( groupName ).getMembers();
 	}
 
-	// gets the list of messages sent to a group or a user
-	public ArrayList<String> getGroupHistory( String groupName )
+	// gets the messages sent to a group, loading them from disk if they are unloaded
+	// a shared empty history if the group is unknown, which must only be read
+	public HistoryBuffer getGroupHistory( String groupName )
 	{
-		return groupTable.get(groupName).getHistory();
+		Group temp = groupTable.get( groupName );
+		return temp != null ? loadHistory( temp ) : NO_HISTORY;
 	}
 	
-	// gets the list of messages sent to a group or a user
-	public ArrayList<String> getUserHistory( String userName )
+	// gets the messages sent to a user, a shared empty history if the user is unknown, which must only be read
+	public HistoryBuffer getUserHistory( String userName )
 	{
-		return userHistoryTable.get(userName);
+		HistoryBuffer history = userHistoryTable.get(userName);
+		return history != null ? history : NO_HISTORY;
 	}
 	
 	// gets the list of DataOutputStream for a given list of users
+	// users without a socket or already disconnected are skipped
 	public ArrayList<DataOutputStream> getOutStreamList( ArrayList<String> userList )
 	{
 		ArrayList<DataOutputStream> outStreamList = new ArrayList<DataOutputStream>();
 		for ( String u: userList )
 		{
-			outStreamList.add( userTable.get( u ) );
+			DataOutputStream d = userTable.get( u );
+			if ( d != null && d != NO_STREAM )
+				outStreamList.add( d );
+		}
+		return outStreamList;
+	}
+
+	// gets the list of DataOutputStream for a bitmap of user IDs
+	public ArrayList<DataOutputStream> getOutStreamList( MemberBitmap userList )
+	{
+		ArrayList<DataOutputStream> outStreamList = new ArrayList<DataOutputStream>();
+		for ( int id : userList.toArray() )
+		{
+			DataOutputStream d = userTable.get( userIds.getName( id ) );
+			if ( d != null && d != NO_STREAM )
+				outStreamList.add( d );
 		}
 		return outStreamList;
 	}
+
+	// gets the event stream of a REST user, creating it on their first subscription
+	// null if the user is unknown or connected through msgp
+	public EventStream getEventStream( String userName )
+	{
+		DataOutputStream stream = userTable.computeIfPresent( userName, ( u, s ) -> s == NO_STREAM ? new EventStream() : s );
+		return stream instanceof EventStream ? (EventStream) stream : null;
+	}
+
+	// gets the outbound queue of every connected user that has one, sorted by user name
+	public TreeMap<String, OutboundQueue> getOutboundQueues()
+	{
+		TreeMap<String, OutboundQueue> queues = new TreeMap<String, OutboundQueue>();
+		for ( Map.Entry<String, DataOutputStream> e : userTable.entrySet() )
+		{
+			if ( e.getValue() instanceof MsgpOutputStream && ((MsgpOutputStream) e.getValue()).getOutbound() != null )
+				queues.put( e.getKey(), ((MsgpOutputStream) e.getValue()).getOutbound() );
+		}
+		return queues;
+	}
+
+	// gets the ID of a user, -1 if the user is neither in the system nor in a group
+	public int getUserId( String userName )
+	{
+		return userIds.lookup( userName );
+	}
+
+	/**
+	 * adds the members of a group to a bitmap of recipient user IDs
+	 *
+	 * @param groupName 	the name of the group
+	 * @param recipients 	the bitmap to add the members to
+	 **/
+	public void addMembersTo( String groupName, MemberBitmap recipients )
+	{
+		Group temp = groupTable.get( groupName );
+		if ( temp != null )
+			temp.addMembersTo( recipients );
+	}
 	
 
 	// checks whether a group exists
@@ -158,18 +407,22 @@ public class ChatServer implements MessageServer {
 	// checks whether a user is a member of a group
 	public boolean isMember( String userName )
 	{
-		for ( Group g : groupTable.values() )
-		{
-			if ( g.contains( userName ) )
-				return true;
-		}
-		return false;
+		Set<String> groups = userGroupTable.get( userName );
+		return groups != null && !groups.isEmpty();
 	}
 	
-	// checks whether a user is a member of a group
+	// checks whether a user is a member of a given group
 	public boolean isMemberOfGroup( String userName, String groupName )
 	{	
-		return groupTable.get(groupName).contains(userName);
+		Set<String> groups = userGroupTable.get( userName );
+		return groups != null && groups.contains( groupName );
+	}
+
+	// gets a snapshot of the groups a user is a member of
+	public ArrayList<String> getUserGroups( String userName )
+	{
+		Set<String> groups = userGroupTable.get( userName );
+		return groups == null ? new ArrayList<String>() : new ArrayList<String>( groups );
 	}
 
 
@@ -177,9 +430,20 @@ public class ChatServer implements MessageServer {
 	//** command methods **\\
 
 	// adds a group to the system
+	// does nothing if another thread has created the group in the meantime
 	public void addGroup( String groupName)
 	{
-		groupTable.put(groupName, new Group(groupName) );
+		Group temp = new Group(groupName, userIds, newHistoryBuffer());
+		MessageJournal.Position position;
+		synchronized( temp )
+		{
+			if ( groupTable.putIfAbsent(groupName, temp ) != null )
+				return;
+			groupsVersion.incrementAndGet();
+			position = log( MessageJournal.GROUP, 0, groupName, null );
+			markUsed( temp );
+		}
+		awaitDurable( position );
 		// if groupName is ReservedGroup, then this is the initialization procedure to add the user record to the system
 		if ( groupName.equals("ReservedGroup"))
 		{
@@ -191,33 +455,120 @@ public class ChatServer implements MessageServer {
 		}
 	}
 
-	// adds a userName and DataOutputStream Mapping to the userTable
-	// also add the userName and their history mapping to userHistoryTable
-	public void addUserToSystem( String userName, DataOutputStream outStream )
+	// adds a userName and DataOutputStream Mapping to the userTable, unless the name is already taken
+	// also add the userName and their history mapping to userHistoryTable, unless recovered from the journal
+	// returns false if the name is taken, the user already in the system keeps it
+	public boolean addUserToSystem( String userName, DataOutputStream outStream )
 	{
+		if ( userTable.putIfAbsent( userName, outStream != null ? outStream : NO_STREAM ) != null )
+			return false;
 		System.out.println("User "+userName+" is online !!!");
-		userTable.put( userName, outStream );
-		userHistoryTable.put(userName, new ArrayList<String>());
+		userIds.acquire( userName );
+		usersVersion.incrementAndGet();
+		userHistoryTable.putIfAbsent(userName, newHistoryBuffer());
+		return true;
 	}
 	
 	// remove a userName and DataOutputStream Mapping from the userTable
+	// also removes the user from every group he/she is still a member of
 	public void removeUserFromSystem( String userName )
 	{
-		userTable.remove(userName);
-		userHistoryTable.remove(userName);
+		// the connection may be closed before the user has ever joined
+		if ( userName == null )
+			return;
+		DataOutputStream previous = userTable.remove(userName);
+		if ( previous != null )
+		{
+			usersVersion.incrementAndGet();
+			userIds.release( userIds.lookup( userName ) );
+		}
+		closeEventStream( previous );
+		HistoryBuffer history = userHistoryTable.remove(userName);
+		if ( history != null )
+		{
+			// journaled under the history's lock, so after any message added to it before the removal
+			// not waited for: if it is lost in a crash, the user only gets the dropped history back
+			// cleared to free the messages it keeps in the off-heap store, if any
+			synchronized( history )
+			{
+				log( MessageJournal.USER_REMOVED, 0, userName, "" );
+				history.clear();
+			}
+		}
+
+		for ( String g : getUserGroups( userName ) )
+		{
+			removeUserFromGroup( userName, g );
+		}
+		// a group joined meanwhile keeps the entry
+		userGroupTable.computeIfPresent( userName, ( u, groups ) -> groups.isEmpty() ? null : groups );
 	}
 	
 	// add a message to a user's history
 	public void addUserHistory( String userName, String message )
 	{
-		userHistoryTable.get(userName).add( message );
+		awaitDurable( appendUserHistory( userName, message ) );
+	}
+
+	// adds a message to a user's history without waiting for the journal to write it to disk, for batches
+	// the message is dropped if the user has no history, that is if it is not in the system
+	// returns the position to wait for with awaitDurable, null if the message is dropped
+	public MessageJournal.Position appendUserHistory( String userName, String message )
+	{
+		HistoryBuffer history = userHistoryTable.get( userName );
+		if ( history == null )
+			return null;
+		MessageJournal.Position position;
+		synchronized( history )
+		{
+			// the user may have left since, its removal is journaled under this lock
+			if ( userHistoryTable.get( userName ) != history )
+				return null;
+			position = log( MessageJournal.USER_MESSAGE, history.add( message ), userName, message );
+		}
+		messageAdded( "@", userName );
+		return position;
+	}
+
+	// adds a message recovered from the journal to a user's history
+	public void restoreUserHistory( String userName, long seq, long time, String message )
+	{
+		userHistoryTable.computeIfAbsent( userName, u -> newHistoryBuffer() ).restore( seq, time, message );
+	}
+
+	// moves a user's history on to a sequence number recovered from the journal, its messages up to it were evicted
+	public void skipUserHistory( String userName, long seq )
+	{
+		userHistoryTable.computeIfAbsent( userName, u -> newHistoryBuffer() ).skipTo( seq );
+	}
+
+	// drops the history of a user that left the system, recovered from the journal
+	public void dropUserHistory( String userName )
+	{
+		HistoryBuffer history = userHistoryTable.remove( userName );
+		if ( history != null )
+			history.clear();
 	}
 	
 	// adds a user to a group
 	public void addUserToGroup ( String userName, String groupName )
 	{		
 		Group temp = groupTable.get( groupName );
-		temp.addMember( userName );
+		if ( temp == null )
+			return;
+		MessageJournal.Position position;
+		// the index of the user's groups is updated under the same lock, so it follows the membership in the same order
+		synchronized( temp )
+		{
+			temp.addMember( userName );
+			userGroupTable.compute( userName, ( u, groups ) -> {
+				Set<String> g = groups != null ? groups : ConcurrentHashMap.<String>newKeySet();
+				g.add( groupName );
+				return g;
+			});
+			position = log( MessageJournal.JOIN, 0, userName, groupName );
+		}
+		awaitDurable( position );
 		System.out.println("User "+userName+" is added to group "+groupName);
 	} 
 
@@ -230,14 +581,37 @@ public class ChatServer implements MessageServer {
 	public void removeUserFromGroup ( String userName, String groupName )
 	{
 		Group temp = groupTable.get( groupName );
-		temp.removeMember( userName );
+		if ( temp == null )
+			return;
+		MessageJournal.Position position;
+		synchronized( temp )
+		{
+			temp.removeMember( userName );
+			Set<String> groups = userGroupTable.get( userName );
+			if ( groups != null )
+				groups.remove( groupName );
+			position = log( MessageJournal.LEAVE, 0, userName, groupName );
+		}
+		awaitDurable( position );
 		System.out.println("User "+userName+" is removed from the group "+groupName);
 		
 		// if groupName is ReservedGroup, then this is just the initialization procedure to add the user record to the system
 		// remove this group upon completion of the procedure
-		if ( groupName.equals("ReservedGroup"))
+		// a concurrent request may already have put a new ReservedGroup in its place, which is left alone
+		if ( groupName.equals("ReservedGroup") && groupTable.remove(groupName, temp) )
 		{
-			groupTable.remove(groupName);
+			groupsVersion.incrementAndGet();
+			synchronized( temp )
+			{
+				synchronized( loadedGroups )
+				{
+					loadedGroups.remove( temp );
+				}
+				HistoryBuffer history = temp.getHistory();
+				temp.setHistory( null );
+				if ( history != null )
+					history.clear();
+			}
 			System.out.println(groupName+" is removed from the system");
 		}
 		
@@ -266,7 +640,308 @@ public class ChatServer implements MessageServer {
 	 **/
 	public void addHistory ( String message, String groupName )
 	{
-		groupTable.get( groupName ).getHistory().add( message );
+		awaitDurable( appendHistory( message, groupName ) );
+	}
+
+	// adds a message to a group's history without waiting for the journal to write it to disk, for batches
+	// returns the position to wait for with awaitDurable
+	public MessageJournal.Position appendHistory ( String message, String groupName )
+	{
+		Group temp = groupTable.get( groupName );
+		if ( temp == null )
+			return null;
+		MessageJournal.Position position;
+		synchronized( temp )
+		{
+			// the group may have been removed since, its history is released under this lock
+			if ( groupTable.get( groupName ) != temp )
+				return null;
+			HistoryBuffer history = loadHistory( temp );
+			position = log( MessageJournal.GROUP_MESSAGE, history.add( message ), groupName, message );
+			if ( position != null )
+				temp.addHistoryOnDisk( position );
+		}
+		messageAdded( "#", groupName );
+		return position;
+	}
+
+	/**
+	 * calls back once the next message is added to the history of a group or user, for long polls
+	 * the callback runs on the thread adding the message, so it must hand off any real work
+	 *
+	 * @param target 	#<group> or @<user>
+	 * @param callback 	called once, unless cancelled first
+	 **/
+	public void onNextMessage( String target, Runnable callback )
+	{
+		historyWaiters.compute( target, ( t, waiting ) -> {
+			if ( waiting == null )
+				waiting = new ArrayList<Runnable>();
+			waiting.add( callback );
+			return waiting;
+		});
+	}
+
+	// stops waiting for the next message of a history, when a long poll times out
+	public void cancelNextMessage( String target, Runnable callback )
+	{
+		historyWaiters.computeIfPresent( target, ( t, waiting ) -> {
+			waiting.remove( callback );
+			return waiting.isEmpty() ? null : waiting;
+		});
+	}
+
+	// records where a group history message recovered from the journal is, without loading it
+	public void addHistoryOnDisk( String groupName, MessageJournal.Position position )
+	{
+		Group temp = groupTable.get( groupName );
+		if ( temp != null )
+			temp.addHistoryOnDisk( position );
+	}
+
+	/**
+	 * writes the state of the server to a snapshot, as journal records
+	 * each group and history is locked only while it is written, the server keeps running
+	 * unloaded group histories are read from disk for the time they are written
+	 *
+	 * @param out 	the snapshot stream
+	 * @return 		the position of each group's history in the snapshot
+	 **/
+	public Map<Group, MessageJournal.Position> writeSnapshot( MessageJournal.SnapshotOutput out ) throws IOException
+	{
+		HashMap<Group, MessageJournal.Position> histories = new HashMap<Group, MessageJournal.Position>();
+		for ( Group g : groupTable.values() )
+		{
+			synchronized( g )
+			{
+				g.writeMembers( out );
+				HistoryBuffer history = g.getHistory();
+				boolean unloaded = history == null;
+				if ( unloaded )
+					history = readHistory( g );
+
+				long start = out.position();
+				history.writeSnapshot( out, MessageJournal.GROUP_SEQ, MessageJournal.GROUP_MESSAGE, g.getName() );
+				histories.put( g, out.positionSince( start ) );
+
+				// release the messages read only for the snapshot
+				if ( unloaded )
+					history.clear();
+			}
+		}
+		for ( Map.Entry<String, HistoryBuffer> e : userHistoryTable.entrySet() )
+		{
+			e.getValue().writeSnapshot( out, MessageJournal.USER_SEQ, MessageJournal.USER_MESSAGE, e.getKey() );
+		}
+		return histories;
+	}
+
+	/**
+	 * points the groups at their histories in a new snapshot, once it is safely on disk
+	 * called before the older snapshot and segments are deleted
+	 *
+	 * @param histories 	the positions returned by writeSnapshot
+	 * @param generation 	the segment the snapshot was taken at
+	 **/
+	public void snapshotTaken( Map<Group, MessageJournal.Position> histories, long generation )
+	{
+		for ( Map.Entry<Group, MessageJournal.Position> e : histories.entrySet() )
+		{
+			e.getKey().replaceHistoryOnDisk( e.getValue(), generation );
+		}
+	}
+
+
+
+	//** helper methods **\\
+
+	// creates an executor that starts a virtual thread per task, null if the JVM has no virtual threads
+	// looked up by reflection, so the server still compiles and runs on Java versions without them
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		}
+		catch ( ReflectiveOperationException | UnsupportedOperationException e )
+		{
+			System.out.println("Virtual threads are not available in this JVM, using platform threads");
+			return null;
+		}
+	}
+
+	// creates an empty history with the configured retention limits
+	private HistoryBuffer newHistoryBuffer()
+	{
+		return new HistoryBuffer( HISTORY_MAX_MESSAGES, HISTORY_MAX_BYTES, HISTORY_MAX_AGE_MILLIS, historyStore );
+	}
+
+	// disconnects the client of a REST user's event stream, once the stream is no longer in the user table
+	private void closeEventStream( DataOutputStream stream )
+	{
+		if ( stream instanceof EventStream )
+			((EventStream) stream).close();
+	}
+
+	// records a change in the journal, if journaling
+	// returns the position to wait for with awaitDurable, null if the change was not journaled
+	private MessageJournal.Position log( byte type, long seq, String first, String second )
+	{
+		return journal != null ? journal.append( type, seq, first, second ) : null;
+	}
+
+	// calls back the waiters for the next message of a history, once a message is added to it
+	private void messageAdded( String prefix, String name )
+	{
+		// nobody waits in the usual case, skip building the key
+		if ( historyWaiters.isEmpty() )
+			return;
+
+		ArrayList<Runnable> waiting = historyWaiters.remove( prefix + name );
+		if ( waiting != null )
+			waiting.forEach( Runnable::run );
+	}
+
+	// waits until a journaled change is on disk, and every change journaled before it
+	public void awaitDurable( MessageJournal.Position position )
+	{
+		if ( journal != null && position != null )
+			journal.awaitDurable( position );
+	}
+
+	// gets the history of a group, reading it from disk if it is unloaded, and marks the group as used
+	private HistoryBuffer loadHistory( Group group )
+	{
+		synchronized( group )
+		{
+			HistoryBuffer history = group.getHistory();
+			if ( history == null )
+			{
+				history = readHistory( group );
+				group.setHistory( history );
+			}
+			markUsed( group );
+			return history;
+		}
+	}
+
+	// reads the history of a group from the journal and snapshot into a new buffer
+	// messages past the retention limits are evicted as they are read
+	private HistoryBuffer readHistory( Group group )
+	{
+		HistoryBuffer history = newHistoryBuffer();
+		try
+		{
+			MessageJournal.readHistory( group.getHistoryOnDisk(), group.getName(), history );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+		return history;
+	}
+
+	// moves a group to the most recently used end of loadedGroups, called under the lock of the group
+	private void markUsed( Group group )
+	{
+		synchronized( loadedGroups )
+		{
+			loadedGroups.put( group, System.currentTimeMillis() );
+		}
+	}
+
+	// unloads the least recently used group histories while the loaded ones are over the memory budget
+	// their messages stay on disk, in the journal and snapshot
+	// run periodically by maintenance
+	private void unloadColdHistories()
+	{
+		// a message that could not be journaled exists only in memory
+		if ( journal.hasFailed() )
+			return;
+
+		ArrayList<Map.Entry<Group, Long>> groups;
+		synchronized( loadedGroups )
+		{
+			groups = new ArrayList<Map.Entry<Group, Long>>();
+			for ( Map.Entry<Group, Long> e : loadedGroups.entrySet() )
+			{
+				groups.add( new AbstractMap.SimpleEntry<Group, Long>( e ) );
+			}
+		}
+
+		long total = 0;
+		for ( Map.Entry<Group, Long> e : groups )
+		{
+			HistoryBuffer history = e.getKey().getHistory();
+			if ( history != null )
+				total += history.getBytes();
+		}
+
+		long idleSince = System.currentTimeMillis() - UNLOAD_IDLE_MILLIS;
+		for ( Map.Entry<Group, Long> e : groups )
+		{
+			if ( total <= HISTORY_MEMORY_BUDGET || e.getValue() > idleSince )
+				break;
+			total -= unloadHistory( e.getKey(), e.getValue() );
+		}
+	}
+
+	// unloads the history of a group, unless it was used since lastUsed
+	// returns the number of bytes released
+	private long unloadHistory( Group group, long lastUsed )
+	{
+		synchronized( group )
+		{
+			synchronized( loadedGroups )
+			{
+				if ( !loadedGroups.remove( group, lastUsed ) )
+					return 0;
+			}
+			HistoryBuffer history = group.getHistory();
+			if ( history == null )
+				return 0;
+
+			// the newest messages must be readable from the segment before they leave memory
+			MessageJournal.Position last = group.getLastHistoryOnDisk();
+			if ( last != null )
+				journal.awaitWritten( last );
+
+			group.setHistory( null );
+			long bytes = history.getBytes();
+			history.clear();
+			return bytes;
+		}
+	}
+
+	// takes a snapshot once the journal segment has grown past its limit
+	// run periodically by maintenance
+	private void snapshotIfDue()
+	{
+		try
+		{
+			if ( journal.getSegmentSize() >= SNAPSHOT_BYTES )
+				journal.snapshot( this );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	// evicts expired messages from every group and user history
+	// run periodically by maintenance
+	private void evictExpiredHistory()
+	{
+		for ( Group g : groupTable.values() )
+		{
+			HistoryBuffer history = g.getHistory();
+			if ( history != null )
+				history.evictExpired();
+		}
+		for ( HistoryBuffer h : userHistoryTable.values() )
+		{
+			h.evictExpired();
+		}
 	}
 
 } // end class ChatServer
@@ -0,0 +1,208 @@
+/**
+ * the stream of the messages of a REST user, served as Server-Sent Events by GET /events/<user>
+ * it takes the place of a socket's stream in the user table, so messages reach it by the same fan-out as msgp connections
+ *
+ * every message pushed to the user is numbered and kept in a replay buffer of -Dchat.sse.replay messages,
+ * and sent with its number as the event id; a client reconnecting with a Last-Event-ID header
+ * first gets the messages it missed, including those pushed while it had no connection
+ * a user has one connection at a time, a new one replaces the previous one
+ *
+ * the events of a connection wait in an OutboundQueue drained by the writer threads, like the messages of a msgp connection,
+ * so a held connection costs no thread; an idle connection gets a comment every -Dchat.sse.heartbeatSeconds
+ * so that a client which went away is noticed
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class EventStream extends MsgpOutputStream
+{
+	//** settings **\\
+	private static final int REPLAY = Integer.getInteger( "chat.sse.replay", 256 );
+	private static final long REPLAY_BYTES = 1L << 20;
+	private static final long HEARTBEAT_SECONDS = Long.getLong( "chat.sse.heartbeatSeconds", 15 );
+
+	// the comment sent to idle connections
+	private static final MsgpFrame HEARTBEAT = new MsgpFrame( MESSAGE, ":\n\n" );
+
+	// sends the heartbeats of every connection
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor( r -> {
+		Thread t = new Thread( r, "sse-heartbeat" );
+		t.setDaemon( true );
+		return t;
+	});
+
+
+	//** instance variables **\\
+
+	// the messages pushed to the user, numbered, for the clients that reconnect
+	private HistoryBuffer replay;
+
+	// the connection the events are sent to, null while the user has none
+	private Connection connection;
+
+
+	// constructor, the stream has no connection until attach is called
+	public EventStream()
+	{
+		super( OutputStream.nullOutputStream() );
+		replay = new HistoryBuffer( REPLAY, REPLAY_BYTES, Long.MAX_VALUE, null );
+	}
+
+
+	//** query methods **\\
+
+	// checks whether a client is connected to the stream
+	public synchronized boolean isConnected()
+	{
+		return connection != null;
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * numbers a message pushed to the user and sends it to the connection, if any
+	 * never blocks on the connection, the event is only enqueued
+	 *
+	 * @param frame 	the message
+	 * @param flush 	ignored, the writer threads flush the events
+	 **/
+	@Override
+	public synchronized void writeFrame( MsgpFrame frame, boolean flush )
+	{
+		long seq = replay.add( frame.getText() );
+		if ( connection != null )
+			connection.queue.offer( event( seq, frame.getText() ) );
+	}
+
+	/**
+	 * sends the events of the stream to a client, in place of the previous one
+	 * the response headers must already be sent; the exchange is closed once the client is replaced or goes away
+	 * the previous client is disconnected without holding the lock of the stream, its writer may still be blocked on it
+	 *
+	 * @param exchange 		the request of the client
+	 * @param lastEventId 	the id of the last event the client got, to send it the later ones first; -1 for none
+	 **/
+	public void attach( HttpExchange exchange, long lastEventId )
+	{
+		Connection c = new Connection( exchange );
+		Connection previous;
+		synchronized( this )
+		{
+			previous = connection;
+			if ( lastEventId >= 0 )
+				replay.forEachSince( lastEventId, Integer.MAX_VALUE, ( message, seq ) -> c.queue.offer( event( seq, message ) ) );
+			connection = c;
+		}
+		if ( previous != null )
+			previous.disconnect();
+	}
+
+	// disconnects the client, once the user leaves the system
+	@Override
+	public void close()
+	{
+		Connection previous;
+		synchronized( this )
+		{
+			previous = connection;
+			connection = null;
+		}
+		if ( previous != null )
+			previous.disconnect();
+	}
+
+
+	//** helper methods **\\
+
+	// encodes a message as an event: one data line per line of the message, then an empty line
+	private static MsgpFrame event( long seq, String message )
+	{
+		StringBuilder event = new StringBuilder( message.length() + 32 );
+		event.append( "id: " ).append( seq ).append( '\n' );
+		int start = 0;
+		int end;
+		while ( ( end = message.indexOf( '\n', start ) ) >= 0 )
+		{
+			event.append( "data: " ).append( message, start, end ).append( '\n' );
+			start = end + 1;
+		}
+		event.append( "data: " ).append( message, start, message.length() ).append( "\n\n" );
+		return new MsgpFrame( MESSAGE, event.toString() );
+	}
+
+
+	// the response body of a client, which the writer threads write the encoded events to
+	private class Connection extends MsgpOutputStream
+	{
+		private HttpExchange exchange;
+		private OutboundQueue queue;
+		private ScheduledFuture<?> heartbeat;
+
+		// set once disconnect is called, guarded by the lock of the stream
+		private boolean disconnected;
+
+		Connection( HttpExchange exchange )
+		{
+			super( exchange.getResponseBody() );
+			this.exchange = exchange;
+			// a dropped event is still in the replay buffer, the client gets it by reconnecting
+			queue = new OutboundQueue( this, this::disconnect, message -> {} );
+			heartbeat = TIMER.scheduleAtFixedRate( () -> queue.offer( HEARTBEAT ), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS );
+		}
+
+		// writes an event as is, the frame already holds its encoding
+		@Override
+		public synchronized void writeFrame( MsgpFrame frame, boolean flush ) throws IOException
+		{
+			try
+			{
+				byte[] bytes = frame.getText().getBytes( StandardCharsets.UTF_8 );
+				write( bytes, 0, bytes.length );
+				if ( flush )
+					flush();
+			}
+			catch ( IOException e )
+			{
+				disconnect();
+				throw e;
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException
+		{
+			try
+			{
+				super.flush();
+			}
+			catch ( IOException e )
+			{
+				disconnect();
+				throw e;
+			}
+		}
+
+		// detaches the connection from the stream, and closes the exchange once the writer is done with it
+		// the exchange is closed by the writer after its last write if one is under way, so a write is never cut short
+		void disconnect()
+		{
+			synchronized( EventStream.this )
+			{
+				if ( disconnected )
+					return;
+				disconnected = true;
+				if ( connection == this )
+					connection = null;
+			}
+			heartbeat.cancel( false );
+			queue.close( exchange::close );
+		}
+	}
+}
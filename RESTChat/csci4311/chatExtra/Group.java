@@ -1,29 +1,57 @@
 /**
  * Encodes a chat group in the system of groups maintained by the chat server
+ * all methods are synchronized on the group, since several server threads may
+ * join, leave or send to the same group at once
+ *
+ * the history of a group is only kept in memory while the group is in use:
+ * the group remembers where its history messages are in the journal and snapshot,
+ * so ChatServer can unload the history of a cold group and read it back when it is needed again
  */
 
 package csci4311.chatExtra;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Group
 {
+	// the versions handed out to the member lists of every group, so a group created again under the name
+	// of a removed one never reuses one of its versions, which ETags and cached documents still refer to
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
 	// instance variables \\
 	
 	// the name of the group
 	private String name;
-	// the ArrayList that saves the group's members' names
-	private ArrayList<String> members;
-	// the LinkedList that saves the group's chat history
-	private ArrayList<String> history;
+	// the dictionary that maps user names to user IDs
+	private NameDictionary userIds;
+	// the bitmap that saves the IDs of the group's members
+	// IDs are ordered, so members are always listed in the same order
+	private MemberBitmap members;
+	// the ring buffer that saves the group's chat history, null while the history is unloaded
+	private HistoryBuffer history;
+	// the positions of the group's history messages in the journal and snapshot, oldest first
+	private ArrayList<MessageJournal.Position> historyOnDisk;
+	// the version of the member list, taken from VERSIONS when the group is created and whenever a member joins or leaves
+	private long version;
 
 	
-	// constructor
-	public Group(String name)
+	/**
+	 * constructor
+	 *
+	 * @param name 		the name of the group
+	 * @param userIds 	the dictionary of user IDs shared by all groups
+	 * @param history 	the empty history buffer of the group, null to start with an unloaded history
+	 **/
+	public Group(String name, NameDictionary userIds, HistoryBuffer history)
 	{	
 		this.name = name; 
-		members = new ArrayList<String>();
-		history = new ArrayList<String>();
+		this.userIds = userIds;
+		members = new MemberBitmap();
+		this.history = history;
+		historyOnDisk = new ArrayList<MessageJournal.Position>();
+		version = VERSIONS.incrementAndGet();
 	}
 
 
@@ -34,55 +62,141 @@ public class Group
 	{
 		return this.name;
 	}
-	// getter for group's member list
-	public ArrayList<String> getMembers()
+	// getter for a snapshot of group's member list
+	public synchronized ArrayList<String> getMembers()
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		for ( int id : members.toArray() )
+		{
+			names.add( userIds.getName( id ) );
+		}
+		return names;
+	}
+
+	// getter for the version of group's member list
+	public synchronized long getVersion()
 	{
-		return this.members;
+		return this.version;
 	}
 
 	// getter for group's size
-	public int getSize()
+	public synchronized int getSize()
 	{
-		return this.members.size();
+		return this.members.cardinality();
 	}
 	
-	// getter for group's history
-	public ArrayList<String> getHistory()
+	// getter for group's history, null while unloaded; the buffer does its own locking
+	public synchronized HistoryBuffer getHistory()
 	{
 		return this.history;
 	}
+
+	// getter for a copy of the positions of the group's history messages on disk
+	public synchronized ArrayList<MessageJournal.Position> getHistoryOnDisk()
+	{
+		return new ArrayList<MessageJournal.Position>( historyOnDisk );
+	}
+
+	// getter for the position of the newest history message on disk, null if there is none
+	public synchronized MessageJournal.Position getLastHistoryOnDisk()
+	{
+		return historyOnDisk.isEmpty() ? null : historyOnDisk.get( historyOnDisk.size() - 1 );
+	}
 	
 	// checks whether the Group contains a given user
-	public boolean contains( String user )
+	public synchronized boolean contains( String user )
 	{
-		return members.contains( user );
+		int id = userIds.lookup( user );
+		return id >= 0 && members.contains( id );
+	}
+
+	// adds the IDs of all members of the group to a recipient bitmap
+	public synchronized void addMembersTo( MemberBitmap recipients )
+	{
+		recipients.or( members );
+	}
+
+
+
+	/**
+	 * writes the group and its members to a snapshot, as journal records
+	 * the history is written separately by ChatServer, which may have to load it first
+	 *
+	 * @param out 	the snapshot stream
+	 **/
+	public synchronized void writeMembers( DataOutputStream out ) throws IOException
+	{
+		MessageJournal.writeRecord( out, MessageJournal.GROUP, 0, 0, name, null );
+		for ( int id : members.toArray() )
+		{
+			MessageJournal.writeRecord( out, MessageJournal.JOIN, 0, 0, userIds.getName( id ), name );
+		}
 	}
 
 
 
 	//** command methods **\\
 
-	// add a member to the group
-	public void addMember ( String user )
+	// add a member to the group, joining twice has no effect
+	// the bitmap holds a reference to the member's ID while the member is in it
+	public synchronized void addMember ( String user )
 	{
-		members.add( user );
+		int id = userIds.acquire( user );
+		if ( members.add( id ) )
+			version = VERSIONS.incrementAndGet();
+		else
+			userIds.release( id );
 	} 
 
 	// remove a member from the group
-	public void removeMember ( String user )
+	public synchronized void removeMember ( String user )
 	{
-		members.remove( user );
+		int id = userIds.lookup( user );
+		if ( id >= 0 && members.remove( id ) )
+		{
+			version = VERSIONS.incrementAndGet();
+			userIds.release( id );
+		}
 	}
 
-	// add a message to the group's history
-	public void addHistory( String message )
+	// add a message to the group's history, which must be loaded
+	public synchronized void addHistory( String message )
 	{
 		history.add( message );
 	}
 
-	// clear the history of the group
-	public void clearHistory( String message )
+	// clear the history of the group, if loaded
+	public synchronized void clearHistory( String message )
+	{
+		if ( history != null )
+			history.clear();
+	}
+
+	// setter for the group's history, null to unload it
+	public synchronized void setHistory( HistoryBuffer history )
+	{
+		this.history = history;
+	}
+
+	// records the position of a history message on disk, merged with the previous one if they are adjacent
+	// the group keeps its own copy, since merging modifies it
+	public synchronized void addHistoryOnDisk( MessageJournal.Position position )
+	{
+		MessageJournal.Position last = getLastHistoryOnDisk();
+		if ( last == null || !last.extend( position ) )
+			historyOnDisk.add( position.copy() );
+	}
+
+	/**
+	 * replaces the positions of the history messages covered by a snapshot with their position in the snapshot
+	 *
+	 * @param snapshot 		the position of the group's history in the snapshot, null if it had none
+	 * @param generation 	the segment the snapshot was taken at, positions in older segments and snapshots are dropped
+	 **/
+	public synchronized void replaceHistoryOnDisk( MessageJournal.Position snapshot, long generation )
 	{
-		history.clear();
+		historyOnDisk.removeIf( p -> p.generation < generation );
+		if ( snapshot != null && snapshot.length > 0 )
+			historyOnDisk.add( 0, snapshot );
 	}
 }
@@ -0,0 +1,323 @@
+/**
+ * the message history of a group or a user
+ * backed by a ring buffer, so the history never grows past its retention limits:
+ * 		the number of messages, bounded by the capacity of the ring
+ * 		the total size of the messages in bytes
+ * 		the age of the messages, expired messages are evicted by ChatServer's background task
+ * the oldest messages are evicted first
+ * the ring starts small and doubles as messages arrive, up to the capacity, so an idle history costs little memory
+ *
+ * every message gets a sequence number, one more than the previous message of the same history
+ * since only the oldest messages are evicted, the retained messages always have consecutive numbers,
+ * so the messages after a given number are found in constant time, without searching
+ *
+ * the messages are kept on the heap, or in a HistoryStore when one is given, with only their addresses on the heap
+ *
+ * all methods are synchronized on the buffer
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+public class HistoryBuffer
+{
+	// the number of slots of a ring when its first message arrives
+	private static final int INITIAL_SLOTS = 8;
+
+	//** instance variables **\\
+
+	// the ring of messages, used when the messages are kept on the heap
+	private String[] messages;
+
+	// the ring of message addresses in the store, used when the messages are kept off the heap
+	private long[] addresses;
+	private HistoryStore store;
+
+	// the size of each message and the time it was added
+	private int[] sizes;
+	private long[] timestamps;
+
+	// the most messages the ring may hold
+	private int capacity;
+
+	// the number of slots allocated so far, grown up to the capacity
+	private int slots;
+
+	// the index of the oldest message in the ring
+	private int head;
+
+	// the number of messages in the ring
+	private int count;
+
+	// the total size of the messages in the ring, in bytes
+	private long bytes;
+
+	// the sequence number of the newest message, 0 if no message was ever added
+	private long lastSeq;
+
+	// the retention limits by total size and by age
+	private long maxBytes;
+	private long maxAgeMillis;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param maxMessages 	the maximum number of messages to retain
+	 * @param maxBytes 		the maximum total size of the retained messages in bytes
+	 * @param maxAgeMillis 	the maximum age of a retained message in milliseconds
+	 * @param store 		the off-heap store of the messages, null to keep them on the heap
+	 **/
+	public HistoryBuffer( int maxMessages, long maxBytes, long maxAgeMillis, HistoryStore store )
+	{
+		capacity = maxMessages;
+		this.store = store;
+		allocate( 0 );
+		head = 0;
+		count = 0;
+		bytes = 0;
+		lastSeq = 0;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+
+	//** query methods **\\
+
+	// checks whether the history is empty
+	public synchronized boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	// getter for the number of retained messages
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	// getter for the total size of the retained messages in bytes
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	// getter for the sequence number of the newest message
+	public synchronized long getLastSeq()
+	{
+		return lastSeq;
+	}
+
+	// getter for the sequence number of the oldest retained message, one more than getLastSeq if the history is empty
+	public synchronized long getFirstSeq()
+	{
+		return lastSeq - count + 1;
+	}
+
+	/**
+	 * passes every retained message, oldest first, to an action
+	 * the messages are read in place, the ring is locked while iterating
+	 *
+	 * @param action 	the action to perform on each message
+	 **/
+	public synchronized void forEach( Consumer<String> action )
+	{
+		for ( int i = 0; i < count; i++ )
+		{
+			action.accept( messageAt( (head + i) % slots ) );
+		}
+	}
+
+	/**
+	 * passes the retained messages newer than a sequence number, oldest first, to an action
+	 * if messages after the number were already evicted, starts with the oldest retained message
+	 *
+	 * @param since 	the sequence number of the last message the caller has, 0 for the whole history
+	 * @param limit 	the maximum number of messages to pass
+	 * @param action 	the action to perform on each message and its sequence number
+	 * @return 			the number of messages passed
+	 **/
+	public synchronized int forEachSince( long since, int limit, ObjLongConsumer<String> action )
+	{
+		long first = lastSeq - count + 1;
+		int skip = (int) Math.max( 0, Math.min( count, since - first + 1 ) );
+		int n = Math.min( count - skip, Math.max( limit, 0 ) );
+		for ( int i = 0; i < n; i++ )
+		{
+			action.accept( messageAt( (head + skip + i) % slots ), first + skip + i );
+		}
+		return n;
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * adds a message to the history
+	 * evicts the oldest messages if the ring is full or the size limit is exceeded
+	 *
+	 * @param message 	the message to be added
+	 * @return 			the sequence number of the message
+	 **/
+	public synchronized long add( String message )
+	{
+		append( message, System.currentTimeMillis() );
+		return lastSeq;
+	}
+
+	/**
+	 * adds a message recovered from the journal, with its original sequence number and time
+	 * a message that is already in the history is ignored
+	 *
+	 * @param seq 		the sequence number of the message
+	 * @param time 		the time the message was first added
+	 * @param message 	the message to be added
+	 **/
+	public synchronized void restore( long seq, long time, String message )
+	{
+		if ( seq <= lastSeq )
+			return;
+
+		// missing messages in between, the retained messages must stay consecutive
+		if ( seq != lastSeq + 1 )
+			clear();
+
+		lastSeq = seq - 1;
+		append( message, time );
+	}
+
+	/**
+	 * moves the sequence number on to one recovered from the journal, the messages up to it having been evicted
+	 * messages older than the number are dropped, a number the history is already past is ignored
+	 *
+	 * @param seq 	the sequence number of the last evicted message
+	 **/
+	public synchronized void skipTo( long seq )
+	{
+		if ( seq <= lastSeq )
+			return;
+
+		clear();
+		lastSeq = seq;
+	}
+
+	/**
+	 * writes every retained message to a snapshot, as journal records
+	 * preceded by a record of the sequence number before the first one, unless no message was ever added
+	 *
+	 * @param out 		the snapshot stream
+	 * @param seqType 	the type of record to write the sequence number as
+	 * @param type 		the type of record to write the messages as
+	 * @param target 	the name of the group or user this history belongs to
+	 **/
+	public synchronized void writeSnapshot( DataOutputStream out, byte seqType, byte type, String target ) throws IOException
+	{
+		long first = lastSeq - count + 1;
+		if ( lastSeq > 0 )
+			MessageJournal.writeRecord( out, seqType, first - 1, 0, target, null );
+		for ( int i = 0; i < count; i++ )
+		{
+			int j = (head + i) % slots;
+			MessageJournal.writeRecord( out, type, first + i, timestamps[j], target, messageAt( j ) );
+		}
+	}
+
+	// evicts the messages that are older than the age limit
+	public synchronized void evictExpired()
+	{
+		long oldest = System.currentTimeMillis() - maxAgeMillis;
+		while ( count > 0 && timestamps[head] < oldest )
+			evictOldest();
+	}
+
+	// clear the history
+	public synchronized void clear()
+	{
+		while ( count > 0 )
+			evictOldest();
+		head = 0;
+	}
+
+
+	//** helper methods **\\
+
+	// adds a message at the end of the ring and takes the next sequence number
+	private void append( String message, long time )
+	{
+		lastSeq++;
+		if ( capacity == 0 )
+			return;
+
+		if ( count == capacity )
+			evictOldest();
+		else if ( count == slots )
+			allocate( Math.min( capacity, Math.max( INITIAL_SLOTS, slots * 2 ) ) );
+
+		int tail = (head + count) % slots;
+		if ( store == null )
+			messages[tail] = message;
+		else
+			addresses[tail] = store.append( message );
+		sizes[tail] = sizeOf( message );
+		timestamps[tail] = time;
+		count++;
+		bytes += sizes[tail];
+
+		// always keep the newest message, even if it is larger than the limit by itself
+		while ( bytes > maxBytes && count > 1 )
+			evictOldest();
+	}
+
+	// removes the oldest message from the ring
+	private void evictOldest()
+	{
+		bytes -= sizes[head];
+		if ( store == null )
+			messages[head] = null;
+		else
+			store.release( addresses[head] );
+		head = (head + 1) % slots;
+		count--;
+	}
+
+	// replaces the ring with one of a given number of slots, which must hold the retained messages,
+	// moving them to its start, oldest first
+	private void allocate( int size )
+	{
+		String[] newMessages = store == null ? new String[ size ] : null;
+		long[] newAddresses = store == null ? null : new long[ size ];
+		int[] newSizes = new int[ size ];
+		long[] newTimestamps = new long[ size ];
+		for ( int i = 0; i < count; i++ )
+		{
+			int j = (head + i) % slots;
+			if ( store == null )
+				newMessages[i] = messages[j];
+			else
+				newAddresses[i] = addresses[j];
+			newSizes[i] = sizes[j];
+			newTimestamps[i] = timestamps[j];
+		}
+		messages = newMessages;
+		addresses = newAddresses;
+		sizes = newSizes;
+		timestamps = newTimestamps;
+		slots = size;
+		head = 0;
+	}
+
+	// the message in a slot of the ring
+	private String messageAt( int j )
+	{
+		return store == null ? messages[j] : store.read( addresses[j] );
+	}
+
+	// the size of a message on the heap, two bytes per char
+	private static int sizeOf( String message )
+	{
+		return 2 * message.length();
+	}
+}
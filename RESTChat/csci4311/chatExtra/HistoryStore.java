@@ -0,0 +1,185 @@
+/**
+ * off-heap storage for history messages
+ * messages are encoded in UTF-8 and appended to memory-mapped segment files,
+ * the HistoryBuffers keep only the address of each message on the heap,
+ * so the amount of retained history does not add to the work of the garbage collector
+ *
+ * a segment file is deleted once every message in it has been evicted
+ * the segments are only a cache of the histories, durability is the job of MessageJournal,
+ * so segments left over from a previous run are deleted on startup
+ *
+ * address of a message: [int segment number][int offset in segment]
+ * message format in a segment: [int length][UTF-8 bytes]
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HistoryStore
+{
+	//** instance variables **\\
+
+	// the directory of the segment files
+	private Path dir;
+
+	// the size of a segment file in bytes
+	private int segmentSize;
+
+	// the segments in use, by segment number
+	private ConcurrentHashMap<Integer, Segment> segments;
+
+	// the segment messages are appended to
+	private Segment active;
+
+	// the number of the next segment to create
+	private int nextSegment;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param dir 			the directory of the segment files, created if missing
+	 * @param segmentSize 	the size of a segment file in bytes
+	 **/
+	public HistoryStore( Path dir, int segmentSize ) throws IOException
+	{
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		segments = new ConcurrentHashMap<Integer, Segment>();
+		nextSegment = 0;
+
+		// delete the segments of a previous run
+		Files.createDirectories( dir );
+		try ( DirectoryStream<Path> old = Files.newDirectoryStream( dir, "history-*.seg" ) )
+		{
+			for ( Path p : old )
+				Files.delete( p );
+		}
+
+		active = newSegment( segmentSize );
+	}
+
+
+	//** query methods **\\
+
+	/**
+	 * reads a message
+	 * safe to call concurrently with append, for a message whose address has already been returned
+	 *
+	 * @param address 	the address returned by append
+	 * @return 			the message
+	 **/
+	public String read( long address )
+	{
+		MappedByteBuffer buffer = segments.get( (int) (address >>> 32) ).buffer;
+		int offset = (int) address;
+		byte[] bytes = new byte[ buffer.getInt( offset ) ];
+		buffer.get( offset + 4, bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * appends a message to the store
+	 *
+	 * @param message 	the message to store
+	 * @return 			the address of the message
+	 * @throws UncheckedIOException if a new segment file cannot be created
+	 **/
+	public synchronized long append( String message )
+	{
+		byte[] bytes = message.getBytes( StandardCharsets.UTF_8 );
+		int size = 4 + bytes.length;
+
+		try
+		{
+			// start a new segment when the active one is full
+			// a message larger than a segment gets a segment of its own
+			if ( active.position + size > active.buffer.capacity() )
+			{
+				Segment full = active;
+				active = newSegment( Math.max( segmentSize, size ) );
+				if ( full.live == 0 )
+					delete( full );
+			}
+		}
+		catch ( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+
+		int offset = active.position;
+		active.buffer.putInt( offset, bytes.length );
+		active.buffer.put( offset + 4, bytes );
+		active.position += size;
+		active.live++;
+
+		return ((long) active.number << 32) | offset;
+	}
+
+	/**
+	 * releases a message evicted from its history
+	 * deletes its segment if it was the last message still in use there
+	 *
+	 * @param address 	the address returned by append
+	 **/
+	public synchronized void release( long address )
+	{
+		Segment segment = segments.get( (int) (address >>> 32) );
+		segment.live--;
+		if ( segment.live == 0 && segment != active )
+			delete( segment );
+	}
+
+
+	//** helper methods **\\
+
+	// creates and maps a new segment file
+	private Segment newSegment( int size ) throws IOException
+	{
+		Segment segment = new Segment();
+		segment.number = nextSegment++;
+		segment.path = dir.resolve( "history-"+segment.number+".seg" );
+		try ( FileChannel channel = FileChannel.open( segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+		{
+			segment.buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+		}
+		segments.put( segment.number, segment );
+		return segment;
+	}
+
+	// deletes a segment file, the mapping itself is released when the buffer is garbage collected
+	private void delete( Segment segment )
+	{
+		segments.remove( segment.number );
+		try
+		{
+			Files.deleteIfExists( segment.path );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+
+	// a mapped segment file
+	private static class Segment
+	{
+		int number;
+		Path path;
+		MappedByteBuffer buffer;
+		// the offset where the next message goes
+		int position;
+		// the number of messages in the segment that are still in use
+		int live;
+	}
+}
@@ -0,0 +1,442 @@
+/**
+ * a compressed bitmap of non-negative int IDs, organized like a roaring bitmap:
+ * 		the high 16 bits of an ID select a container
+ * 		the low 16 bits are stored in that container
+ * a container is a sorted char array while sparse and switches to a plain 65536-bit bitmap once dense
+ *
+ * used to store the membership of groups by user ID
+ * not thread-safe, callers lock the object that owns the bitmap
+ */
+
+package csci4311.chatExtra;
+
+import java.util.*;
+
+public class MemberBitmap
+{
+	//** constants **\\
+
+	// an array container holding more values than this is converted to a bitmap container
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	// number of longs needed to hold 65536 bits
+	private static final int BITMAP_WORDS = 1024;
+
+
+	//** instance variables **\\
+
+	// the sorted high 16 bits of the stored IDs, one entry per container
+	private char[] keys;
+
+	// the containers, containers[i] stores the low 16 bits of the IDs whose high bits are keys[i]
+	private Container[] containers;
+
+	// the number of containers in use
+	private int size;
+
+
+	// constructor
+	public MemberBitmap()
+	{
+		keys = new char[4];
+		containers = new Container[4];
+		size = 0;
+	}
+
+
+	//** query methods **\\
+
+	// checks whether the bitmap contains a given ID
+	public boolean contains( int id )
+	{
+		int i = indexOf( highBits(id) );
+		return i >= 0 && containers[i].contains( lowBits(id) );
+	}
+
+	// getter for the number of IDs in the bitmap
+	public int cardinality()
+	{
+		int count = 0;
+		for ( int i = 0; i < size; i++ )
+		{
+			count += containers[i].cardinality();
+		}
+		return count;
+	}
+
+	// checks whether the bitmap is empty
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	// gets all IDs in the bitmap in ascending order
+	public int[] toArray()
+	{
+		int[] ids = new int[ cardinality() ];
+		int n = 0;
+		for ( int i = 0; i < size; i++ )
+		{
+			n = containers[i].fill( ids, n, keys[i] << 16 );
+		}
+		return ids;
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * adds an ID to the bitmap
+	 *
+	 * @param id 	the ID to add, must not be negative
+	 * @return 		true if the ID was not in the bitmap yet
+	 **/
+	public boolean add( int id )
+	{
+		char high = highBits(id);
+		int i = indexOf( high );
+
+		// no container for these high bits yet, insert a new one in sorted position
+		if ( i < 0 )
+		{
+			i = -i - 1;
+			insertContainer( i, high, new ArrayContainer() );
+		}
+
+		Container c = containers[i];
+		boolean added = c.add( lowBits(id) );
+
+		// convert a full array container to a bitmap container
+		if ( c.cardinality() > MAX_ARRAY_SIZE && c instanceof ArrayContainer )
+			containers[i] = ((ArrayContainer) c).toBitmap();
+
+		return added;
+	}
+
+	/**
+	 * removes an ID from the bitmap
+	 *
+	 * @param id 	the ID to remove
+	 * @return 		true if the ID was in the bitmap
+	 **/
+	public boolean remove( int id )
+	{
+		int i = indexOf( highBits(id) );
+		if ( i < 0 )
+			return false;
+
+		Container c = containers[i];
+		boolean removed = c.remove( lowBits(id) );
+
+		// drop empty containers, and convert sparse bitmap containers back to arrays
+		if ( c.cardinality() == 0 )
+			removeContainer( i );
+		else if ( c.cardinality() <= MAX_ARRAY_SIZE && c instanceof BitmapContainer )
+			containers[i] = ((BitmapContainer) c).toArray();
+
+		return removed;
+	}
+
+	/**
+	 * adds every ID of another bitmap to this one
+	 * duplicates are merged in a single pass over both bitmaps
+	 *
+	 * @param other 	the bitmap to union with
+	 **/
+	public void or( MemberBitmap other )
+	{
+		for ( int j = 0; j < other.size; j++ )
+		{
+			char high = other.keys[j];
+			int i = indexOf( high );
+			if ( i < 0 )
+			{
+				insertContainer( -i - 1, high, other.containers[j].copy() );
+			}
+			else
+			{
+				containers[i] = containers[i].or( other.containers[j] );
+			}
+		}
+	}
+
+
+	//** helper methods **\\
+
+	private static char highBits( int id )
+	{
+		return (char) (id >>> 16);
+	}
+
+	private static char lowBits( int id )
+	{
+		return (char) id;
+	}
+
+	// binary search for a container key, returns (-(insertion point) - 1) if not found
+	private int indexOf( char high )
+	{
+		int lo = 0, hi = size - 1;
+		while ( lo <= hi )
+		{
+			int mid = (lo + hi) >>> 1;
+			if ( keys[mid] < high )
+				lo = mid + 1;
+			else if ( keys[mid] > high )
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -(lo + 1);
+	}
+
+	private void insertContainer( int i, char high, Container c )
+	{
+		if ( size == keys.length )
+		{
+			keys = Arrays.copyOf( keys, size * 2 );
+			containers = Arrays.copyOf( containers, size * 2 );
+		}
+		System.arraycopy( keys, i, keys, i + 1, size - i );
+		System.arraycopy( containers, i, containers, i + 1, size - i );
+		keys[i] = high;
+		containers[i] = c;
+		size++;
+	}
+
+	private void removeContainer( int i )
+	{
+		System.arraycopy( keys, i + 1, keys, i, size - i - 1 );
+		System.arraycopy( containers, i + 1, containers, i, size - i - 1 );
+		size--;
+		containers[size] = null;
+	}
+
+
+
+	//** containers **\\
+
+	// holds the low 16 bits of the IDs sharing the same high 16 bits
+	private static abstract class Container
+	{
+		abstract boolean contains( char low );
+		abstract boolean add( char low );
+		abstract boolean remove( char low );
+		abstract int cardinality();
+		abstract Container copy();
+		// returns the union of the two containers, may reuse this one
+		abstract Container or( Container other );
+		// writes the full IDs into ids starting at position n, returns the next free position
+		abstract int fill( int[] ids, int n, int base );
+	}
+
+
+	// a sorted array of low bits, used while the container is sparse
+	private static class ArrayContainer extends Container
+	{
+		char[] values = new char[4];
+		int cardinality = 0;
+
+		boolean contains( char low )
+		{
+			return Arrays.binarySearch( values, 0, cardinality, low ) >= 0;
+		}
+
+		boolean add( char low )
+		{
+			int i = Arrays.binarySearch( values, 0, cardinality, low );
+			if ( i >= 0 )
+				return false;
+			i = -i - 1;
+			if ( cardinality == values.length )
+				values = Arrays.copyOf( values, cardinality * 2 );
+			System.arraycopy( values, i, values, i + 1, cardinality - i );
+			values[i] = low;
+			cardinality++;
+			return true;
+		}
+
+		boolean remove( char low )
+		{
+			int i = Arrays.binarySearch( values, 0, cardinality, low );
+			if ( i < 0 )
+				return false;
+			System.arraycopy( values, i + 1, values, i, cardinality - i - 1 );
+			cardinality--;
+			return true;
+		}
+
+		int cardinality()
+		{
+			return cardinality;
+		}
+
+		Container copy()
+		{
+			ArrayContainer c = new ArrayContainer();
+			c.values = Arrays.copyOf( values, Math.max( cardinality, 4 ) );
+			c.cardinality = cardinality;
+			return c;
+		}
+
+		Container or( Container other )
+		{
+			// never modify the other container, it belongs to another bitmap
+			if ( other instanceof BitmapContainer )
+				return other.copy().or( this );
+
+			// merge the two sorted arrays
+			ArrayContainer o = (ArrayContainer) other;
+			char[] merged = new char[ cardinality + o.cardinality ];
+			int i = 0, j = 0, n = 0;
+			while ( i < cardinality && j < o.cardinality )
+			{
+				if ( values[i] < o.values[j] )
+					merged[n++] = values[i++];
+				else if ( values[i] > o.values[j] )
+					merged[n++] = o.values[j++];
+				else
+				{
+					merged[n++] = values[i++];
+					j++;
+				}
+			}
+			while ( i < cardinality )
+				merged[n++] = values[i++];
+			while ( j < o.cardinality )
+				merged[n++] = o.values[j++];
+
+			ArrayContainer c = new ArrayContainer();
+			c.values = merged.length == 0 ? new char[4] : merged;
+			c.cardinality = n;
+			return n > MAX_ARRAY_SIZE ? c.toBitmap() : c;
+		}
+
+		int fill( int[] ids, int n, int base )
+		{
+			for ( int i = 0; i < cardinality; i++ )
+			{
+				ids[n++] = base | values[i];
+			}
+			return n;
+		}
+
+		BitmapContainer toBitmap()
+		{
+			BitmapContainer c = new BitmapContainer();
+			for ( int i = 0; i < cardinality; i++ )
+			{
+				c.add( values[i] );
+			}
+			return c;
+		}
+	}
+
+
+	// a plain bitmap of all 65536 low bits, used once the container is dense
+	private static class BitmapContainer extends Container
+	{
+		long[] words = new long[BITMAP_WORDS];
+		int cardinality = 0;
+
+		boolean contains( char low )
+		{
+			return ( words[low >>> 6] & (1L << low) ) != 0;
+		}
+
+		boolean add( char low )
+		{
+			long before = words[low >>> 6];
+			long after = before | (1L << low);
+			words[low >>> 6] = after;
+			if ( before == after )
+				return false;
+			cardinality++;
+			return true;
+		}
+
+		boolean remove( char low )
+		{
+			long before = words[low >>> 6];
+			long after = before & ~(1L << low);
+			words[low >>> 6] = after;
+			if ( before == after )
+				return false;
+			cardinality--;
+			return true;
+		}
+
+		int cardinality()
+		{
+			return cardinality;
+		}
+
+		Container copy()
+		{
+			BitmapContainer c = new BitmapContainer();
+			c.words = words.clone();
+			c.cardinality = cardinality;
+			return c;
+		}
+
+		Container or( Container other )
+		{
+			if ( other instanceof ArrayContainer )
+			{
+				ArrayContainer o = (ArrayContainer) other;
+				for ( int i = 0; i < o.cardinality; i++ )
+				{
+					add( o.values[i] );
+				}
+				return this;
+			}
+
+			BitmapContainer o = (BitmapContainer) other;
+			int count = 0;
+			for ( int i = 0; i < BITMAP_WORDS; i++ )
+			{
+				words[i] |= o.words[i];
+				count += Long.bitCount( words[i] );
+			}
+			cardinality = count;
+			return this;
+		}
+
+		int fill( int[] ids, int n, int base )
+		{
+			for ( int i = 0; i < BITMAP_WORDS; i++ )
+			{
+				long w = words[i];
+				while ( w != 0 )
+				{
+					ids[n++] = base | ( (i << 6) + Long.numberOfTrailingZeros(w) );
+					w &= w - 1;
+				}
+			}
+			return n;
+		}
+
+		ArrayContainer toArray()
+		{
+			ArrayContainer c = new ArrayContainer();
+			c.values = new char[ Math.max( cardinality, 4 ) ];
+			c.cardinality = fillLow( c.values );
+			return c;
+		}
+
+		private int fillLow( char[] values )
+		{
+			int n = 0;
+			for ( int i = 0; i < BITMAP_WORDS; i++ )
+			{
+				long w = words[i];
+				while ( w != 0 )
+				{
+					values[n++] = (char) ( (i << 6) + Long.numberOfTrailingZeros(w) );
+					w &= w - 1;
+				}
+			}
+			return n;
+		}
+	}
+}
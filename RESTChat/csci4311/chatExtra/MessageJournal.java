@@ -0,0 +1,673 @@
+/**
+ * an append-only on-disk journal of the changes made to ChatServer's state:
+ * groups created, users joining and leaving groups, messages added to histories and users leaving the system
+ *
+ * records are appended to an in-memory buffer and written out by a dedicated flusher thread,
+ * which writes and fsyncs every record buffered so far at once (group commit),
+ * so the cost of an fsync is shared by all the requests that arrived while the previous one was running
+ *
+ * the journal is split in numbered segments (<file>.1, <file>.2, ...) and compacted by snapshots:
+ * 		the journal switches to segment n, then ChatServer's state is written to <file>.snapshot.n while writes continue
+ * 		once the snapshot is safely on disk, the older snapshot and segments are deleted
+ * the snapshot may already contain some of the changes of the new segment; replaying them again is harmless,
+ * since memberships are sets and history messages carry sequence numbers, so known messages are skipped
+ * each history in a snapshot starts with a GROUP_SEQ or USER_SEQ record, so its sequence numbers go on
+ * from where they were even if every message was evicted before the snapshot
+ *
+ * on startup, the snapshot is loaded and only the segments written since are replayed
+ * group history messages are not loaded on startup, ChatServer is only told where each one is (a Position),
+ * so it can read a group's history from the snapshot and segments when it is first needed
+ *
+ * record format: [int payload length][int CRC32 of payload][byte type][long seq][long time][int length][UTF-8 bytes][int length][UTF-8 bytes]
+ * a torn record at the end of the journal (crash in the middle of a write) is detected by its length or checksum and discarded
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class MessageJournal
+{
+	//** record types **\\
+	public static final byte GROUP = 1;				// group created: <group>
+	public static final byte JOIN = 2;				// user joined group: <user> <group>
+	public static final byte LEAVE = 3;				// user left group: <user> <group>
+	public static final byte GROUP_MESSAGE = 4;		// message added to group history: <seq> <time> <group> <message>
+	public static final byte USER_MESSAGE = 5;		// message added to user history: <seq> <time> <user> <message>
+	public static final byte USER_REMOVED = 6;		// user left the system, its history dropped: <user>
+	public static final byte GROUP_SEQ = 7;			// group history's messages up to seq evicted: <seq> <group>
+	public static final byte USER_SEQ = 8;			// user history's messages up to seq evicted: <seq> <user>
+
+	// marks the beginning of a snapshot file
+	private static final int SNAPSHOT_MAGIC = 0x4d534e50;
+
+	// the size of the snapshot header: magic and segment number
+	private static final int SNAPSHOT_HEADER = 12;
+
+	// positions of a history this close to each other in a file are read at once
+	private static final int READ_GAP = 64 << 10;
+
+
+	//** instance variables **\\
+
+	// the path of the journal, segments and snapshot are named after it
+	private String basePath;
+
+	// the number of the segment being written
+	private long generation;
+
+	// the segment being written
+	private FileChannel channel;
+
+	// the size of the segment once every appended record is written
+	private long segmentEnd;
+
+	// the records appended but not yet written to the segment
+	private ByteArrayOutputStream pending;
+	private DataOutputStream pendingOut;
+
+	// the sequence number of the last appended record, and of the last record written (and fsynced)
+	private long appendedSeq;
+	private long durableSeq;
+
+	// whether records are fsynced before they are considered durable
+	private boolean syncWrites;
+
+	// set while the flusher is writing a batch outside the lock
+	private boolean flushing;
+
+	// set when the journal can no longer be written
+	private boolean failed;
+
+	// the thread that writes pending records to the segment
+	private Thread flusher;
+
+
+	/**
+	 * constructor
+	 * loads the latest snapshot and replays the segments written after it into the server,
+	 * then starts accepting new records
+	 * group history messages are passed to the server by position only, with addHistoryOnDisk
+	 *
+	 * @param basePath 		the path of the journal
+	 * @param syncWrites 	true to fsync records before they are considered durable
+	 * @param server 		the server to rebuild, must not journal the changes it is replaying
+	 **/
+	public MessageJournal( String basePath, boolean syncWrites, ChatServer server ) throws IOException
+	{
+		this.basePath = basePath;
+		this.syncWrites = syncWrites;
+		pending = new ByteArrayOutputStream();
+		pendingOut = new DataOutputStream( pending );
+		appendedSeq = 0;
+		durableSeq = 0;
+		flushing = false;
+		failed = false;
+
+		// load the latest snapshot, which tells the first segment to replay
+		int records = 0;
+		generation = latestSnapshot();
+		if ( generation > 0 )
+		{
+			Path snapshot = snapshotPath( generation );
+			try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( snapshot ) ) ) )
+			{
+				if ( in.readInt() != SNAPSHOT_MAGIC || in.readLong() != generation )
+					throw new IOException( snapshot+" is not a snapshot" );
+				long[] end = { SNAPSHOT_HEADER };
+				records += replay( in, snapshot, generation, Long.MAX_VALUE, server, end );
+			}
+		}
+		else
+		{
+			generation = 1;
+		}
+		deleteBefore( generation );
+
+		// replay the segments written after the snapshot, cutting off a torn record at the end of the last one
+		while ( true )
+		{
+			Path segment = segmentPath( generation );
+			channel = FileChannel.open( segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+			long[] end = new long[1];
+			records += replay( new DataInputStream( new BufferedInputStream( Channels.newInputStream( channel ) ) ), segment, generation, channel.size(), server, end );
+
+			if ( !Files.exists( segmentPath( generation + 1 ) ) )
+			{
+				channel.truncate( end[0] );
+				channel.position( end[0] );
+				segmentEnd = end[0];
+				break;
+			}
+			channel.close();
+			generation++;
+		}
+		System.out.println("Recovered "+records+" records from journal "+basePath);
+
+		flusher = new Thread( this::flushLoop, "journal-flusher" );
+		flusher.setDaemon( true );
+		flusher.start();
+	}
+
+
+	//** query methods **\\
+
+	// checks whether the journal can no longer be written
+	public synchronized boolean hasFailed()
+	{
+		return failed;
+	}
+
+	// getter for the size of the segment being written, in bytes
+	public synchronized long getSegmentSize()
+	{
+		return segmentEnd;
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * appends a record to the journal without waiting for it to be written
+	 * callers that append under a lock should wait with awaitDurable after releasing it
+	 *
+	 * @param type 		the type of the record
+	 * @param seq 		the sequence number of a history message or marker, 0 for other records
+	 * @param first 	the first field of the record
+	 * @param second 	the second field of the record, null if the type has only one
+	 * @return 			the position of the record, to pass to awaitDurable; null if the journal has failed
+	 **/
+	public synchronized Position append( byte type, long seq, String first, String second )
+	{
+		if ( failed )
+			return null;
+
+		int before = pending.size();
+		try
+		{
+			writeRecord( pendingOut, type, seq, System.currentTimeMillis(), first, second );
+		}
+		catch ( IOException e ) {} // cannot happen with a ByteArrayOutputStream
+
+		int length = pending.size() - before;
+		Position position = new Position( segmentPath( generation ), segmentEnd, length, generation, ++appendedSeq );
+		segmentEnd += length;
+		notifyAll();
+		return position;
+	}
+
+	/**
+	 * waits until a record is durable: written, and fsynced if the journal was opened with syncWrites
+	 * returns at once if the journal does not fsync
+	 *
+	 * @param position 	the value returned by append
+	 **/
+	public void awaitDurable( Position position )
+	{
+		if ( syncWrites )
+			awaitWritten( position );
+	}
+
+	/**
+	 * waits until a record is written to its segment, so it can be read back from the file
+	 *
+	 * @param position 	the value returned by append
+	 **/
+	public synchronized void awaitWritten( Position position )
+	{
+		while ( durableSeq < position.ticket && !failed )
+		{
+			try { wait(); }
+			catch ( InterruptedException e ) { Thread.currentThread().interrupt(); return; }
+		}
+	}
+
+	/**
+	 * takes a snapshot of the server's state and deletes the snapshot and segments it replaces
+	 * the server keeps running and journaling while the snapshot is written
+	 *
+	 * @param server 	the server to take a snapshot of
+	 **/
+	public void snapshot( ChatServer server ) throws IOException
+	{
+		// every change from now on goes to the new segment
+		long first = rotate();
+
+		// write the snapshot to a temporary file, and move it in place once it is complete
+		Path temp = Paths.get( basePath+".snapshot.tmp" );
+		Map<Group, Position> histories;
+		try ( FileOutputStream file = new FileOutputStream( temp.toFile() ) )
+		{
+			SnapshotOutput out = new SnapshotOutput( file, snapshotPath( first ), first );
+			out.writeInt( SNAPSHOT_MAGIC );
+			out.writeLong( first );
+			histories = server.writeSnapshot( out );
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move( temp, snapshotPath( first ), StandardCopyOption.ATOMIC_MOVE );
+
+		// point the groups at their histories in the new snapshot before the old files go away
+		server.snapshotTaken( histories, first );
+		deleteBefore( first );
+		System.out.println("Snapshot taken, journal continues from segment "+first);
+	}
+
+	/**
+	 * reads the history messages of a group from its positions in the journal and snapshot
+	 * each file is opened once, and positions close to each other in a file are read at once along with the records between them,
+	 * which belong to other groups and are skipped
+	 *
+	 * @param positions 	the positions of the records in file order, as passed to addHistoryOnDisk or returned by append
+	 * @param group 		the name of the group
+	 * @param history 		the history to restore the messages into
+	 **/
+	public static void readHistory( List<Position> positions, String group, HistoryBuffer history ) throws IOException
+	{
+		int i = 0;
+		while ( i < positions.size() )
+		{
+			Path path = positions.get( i ).file;
+			try ( FileChannel file = FileChannel.open( path, StandardOpenOption.READ ) )
+			{
+				while ( i < positions.size() && positions.get( i ).file.equals( path ) )
+				{
+					// a span starts and ends at record boundaries, so it holds whole records
+					long offset = positions.get( i ).offset;
+					long end = offset + positions.get( i ).length;
+					i++;
+					while ( i < positions.size() && positions.get( i ).file.equals( path )
+							&& positions.get( i ).offset >= end && positions.get( i ).offset - end <= READ_GAP )
+					{
+						end = positions.get( i ).offset + positions.get( i ).length;
+						i++;
+					}
+					readRecords( file, path, offset, end - offset, group, history );
+				}
+			}
+		}
+	}
+
+	// reads the records of a span of a file, restoring the messages of a group into its history
+	private static void readRecords( FileChannel file, Path path, long offset, long length, String group, HistoryBuffer history ) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate( (int) length );
+		while ( bytes.hasRemaining() )
+		{
+			if ( file.read( bytes, offset + bytes.position() ) < 0 )
+				throw new EOFException( path+" is shorter than expected" );
+		}
+
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.array() ) );
+		while ( in.available() > 0 )
+		{
+			int size = in.readInt();
+			in.readInt(); // checksum, already verified when the position was recorded
+			byte[] payload = new byte[size];
+			in.readFully( payload );
+
+			DataInputStream record = new DataInputStream( new ByteArrayInputStream( payload ) );
+			byte type = record.readByte();
+			long seq = record.readLong();
+			long time = record.readLong();
+			String first = readString( record );
+			String second = readString( record );
+			if ( type == GROUP_MESSAGE && first.equals( group ) )
+				history.restore( seq, time, second );
+			else if ( type == GROUP_SEQ && first.equals( group ) )
+				history.skipTo( seq );
+		}
+	}
+
+	/**
+	 * encodes a record to a stream, used for both segments and snapshots
+	 *
+	 * @param out 		the stream to write to
+	 * @param type 		the type of the record
+	 * @param seq 		the sequence number of a history message or marker, 0 for other records
+	 * @param time 		the time of the change
+	 * @param first 	the first field of the record
+	 * @param second 	the second field of the record, null if the type has only one
+	 **/
+	public static void writeRecord( DataOutputStream out, byte type, long seq, long time, String first, String second ) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream( bytes );
+		payload.writeByte( type );
+		payload.writeLong( seq );
+		payload.writeLong( time );
+		writeString( payload, first );
+		writeString( payload, second != null ? second : "" );
+
+		CRC32 crc = new CRC32();
+		crc.update( bytes.toByteArray(), 0, bytes.size() );
+		out.writeInt( bytes.size() );
+		out.writeInt( (int) crc.getValue() );
+		bytes.writeTo( out );
+	}
+
+
+	//** helper methods **\\
+
+	// the flusher thread runs this method
+	// writes everything buffered since the previous round in one write and one fsync
+	private void flushLoop()
+	{
+		while ( true )
+		{
+			byte[] batch;
+			long seq;
+			synchronized( this )
+			{
+				while ( pending.size() == 0 )
+				{
+					try { wait(); }
+					catch ( InterruptedException e ) { return; }
+				}
+				batch = pending.toByteArray();
+				pending.reset();
+				seq = appendedSeq;
+				flushing = true;
+			}
+
+			try
+			{
+				write( batch );
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+				System.out.println("Journal can no longer be written, changes will not survive a restart");
+				synchronized( this )
+				{
+					failed = true;
+					flushing = false;
+					notifyAll();
+				}
+				return;
+			}
+
+			synchronized( this )
+			{
+				durableSeq = seq;
+				flushing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	// writes a batch of records to the segment
+	private void write( byte[] batch ) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap( batch );
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+		if ( syncWrites )
+			channel.force( false );
+	}
+
+	// closes the segment being written and starts the next one, returns the number of the new segment
+	// appends wait while the segments are switched, so no record is written to the wrong one
+	private synchronized long rotate() throws IOException
+	{
+		while ( flushing )
+		{
+			try { wait(); }
+			catch ( InterruptedException e ) { throw new InterruptedIOException(); }
+		}
+
+		write( pending.toByteArray() );
+		pending.reset();
+		channel.force( false );
+		channel.close();
+
+		generation++;
+		channel = FileChannel.open( segmentPath( generation ), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		segmentEnd = 0;
+		durableSeq = appendedSeq;
+		notifyAll();
+		return generation;
+	}
+
+	// the path of a segment
+	private Path segmentPath( long n )
+	{
+		return Paths.get( basePath+"."+n );
+	}
+
+	// the path of a snapshot
+	private Path snapshotPath( long n )
+	{
+		return Paths.get( basePath+".snapshot."+n );
+	}
+
+	// finds the number of the latest snapshot, 0 if there is none
+	private long latestSnapshot() throws IOException
+	{
+		Path base = Paths.get( basePath ).toAbsolutePath();
+		String prefix = base.getFileName()+".snapshot.";
+		long latest = 0;
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream( base.getParent(), prefix+"*" ) )
+		{
+			for ( Path p : files )
+			{
+				try
+				{
+					latest = Math.max( latest, Long.parseLong( p.getFileName().toString().substring( prefix.length() ) ) );
+				}
+				catch ( NumberFormatException e ) {} // the temporary file of an unfinished snapshot
+			}
+		}
+		return latest;
+	}
+
+	// deletes the snapshots and segments numbered below a given one, they are covered by the snapshot
+	private void deleteBefore( long n ) throws IOException
+	{
+		for ( long i = n - 1; i > 0; i-- )
+		{
+			boolean segment = Files.deleteIfExists( segmentPath( i ) );
+			boolean snapshot = Files.deleteIfExists( snapshotPath( i ) );
+			if ( !segment && !snapshot )
+				break;
+		}
+	}
+
+	// replays the records of a stream into the server, returns the number of records replayed
+	// end[0] holds the offset of the first record on entry, and the offset after the last complete record on return
+	private static int replay( DataInputStream in, Path file, long generation, long size, ChatServer server, long[] end ) throws IOException
+	{
+		int count = 0;
+		CRC32 crc = new CRC32();
+
+		try
+		{
+			while ( true )
+			{
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if ( length < 0 || length > size - end[0] - 8 )
+					break;
+
+				byte[] payload = new byte[length];
+				in.readFully( payload );
+				crc.reset();
+				crc.update( payload, 0, length );
+				if ( (int) crc.getValue() != checksum )
+					break;
+
+				apply( server, payload, new Position( file, end[0], 8 + length, generation, 0 ) );
+				end[0] += 8 + length;
+				count++;
+			}
+		}
+		catch ( EOFException e ) {} // end of the journal
+
+		return count;
+	}
+
+	private static void writeString( DataOutputStream out, String s ) throws IOException
+	{
+		byte[] b = s.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( b.length );
+		out.write( b );
+	}
+
+	private static String readString( DataInputStream in ) throws IOException
+	{
+		byte[] b = new byte[ in.readInt() ];
+		in.readFully( b );
+		return new String( b, StandardCharsets.UTF_8 );
+	}
+
+	// decodes the payload of a record and applies it to the server
+	private static void apply( ChatServer server, byte[] payload, Position position ) throws IOException
+	{
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( payload ) );
+		byte type = in.readByte();
+		long seq = in.readLong();
+		long time = in.readLong();
+		String first = readString( in );
+		String second = readString( in );
+
+		switch ( type )
+		{
+			case GROUP:
+			server.addGroup( first );
+			break;
+			case JOIN:
+			server.addUserToGroup( first, second );
+			break;
+			case LEAVE:
+			server.removeUserFromGroup( first, second );
+			break;
+			case GROUP_MESSAGE:
+			case GROUP_SEQ:
+			server.addHistoryOnDisk( first, position );
+			break;
+			case USER_MESSAGE:
+			server.restoreUserHistory( first, seq, time, second );
+			break;
+			case USER_REMOVED:
+			server.dropUserHistory( first );
+			break;
+			case USER_SEQ:
+			server.skipUserHistory( first, seq );
+			break;
+			default:
+			throw new IOException( "Unknown journal record type "+type );
+		}
+	}
+
+
+	// the position of one or more consecutive records in a segment or snapshot file
+	public static class Position
+	{
+		Path file;
+		long offset;
+		long length;
+		// the number of the segment, or of the segment the snapshot was taken at
+		long generation;
+		// the sequence number of the last appended record, 0 for records read on startup
+		long ticket;
+
+		Position( Path file, long offset, long length, long generation, long ticket )
+		{
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.generation = generation;
+			this.ticket = ticket;
+		}
+
+		// the later of two positions to wait for, either may be null
+		static Position later( Position a, Position b )
+		{
+			if ( a == null )
+				return b;
+			if ( b == null || b.ticket <= a.ticket )
+				return a;
+			return b;
+		}
+
+		Position copy()
+		{
+			return new Position( file, offset, length, generation, ticket );
+		}
+
+		// extends this position over the records that follow it in the same file
+		// returns false if the other position does not start where this one ends
+		boolean extend( Position next )
+		{
+			if ( !file.equals( next.file ) || offset + length != next.offset )
+				return false;
+			length += next.length;
+			ticket = Math.max( ticket, next.ticket );
+			return true;
+		}
+	}
+
+
+	// the stream a snapshot is written to, keeps track of the offset in the file
+	public static class SnapshotOutput extends DataOutputStream
+	{
+		private CountingStream counter;
+		private Path file;
+		private long generation;
+
+		SnapshotOutput( OutputStream file, Path path, long generation )
+		{
+			this( new CountingStream( new BufferedOutputStream( file ) ), path, generation );
+		}
+
+		private SnapshotOutput( CountingStream counter, Path path, long generation )
+		{
+			super( counter );
+			this.counter = counter;
+			this.file = path;
+			this.generation = generation;
+		}
+
+		// getter for the number of bytes written so far
+		public long position()
+		{
+			return counter.count;
+		}
+
+		// gets the position of everything written since a given offset
+		public Position positionSince( long start )
+		{
+			return new Position( file, start, counter.count - start, generation, 0 );
+		}
+	}
+
+	private static class CountingStream extends FilterOutputStream
+	{
+		long count = 0;
+
+		CountingStream( OutputStream out )
+		{
+			super( out );
+		}
+
+		public void write( int b ) throws IOException
+		{
+			out.write( b );
+			count++;
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			out.write( b, off, len );
+			count += len;
+		}
+	}
+}
@@ -13,10 +13,10 @@ public interface MessageServer
 	//** query methods **\\
 
 	// getter for groupTable
-	public HashMap<String,Group> getGroupTable();
+	public Map<String,Group> getGroupTable();
 
 	// getter for userTable
-	public HashMap<String, DataOutputStream> getUserTable();
+	public Map<String, DataOutputStream> getUserTable();
 
 	// gets the list of users in a group
 	public ArrayList<String> getMembership( String groupName );
@@ -24,6 +24,15 @@ public interface MessageServer
 	// gets the list of DataOutputStream for a given list of users
 	public ArrayList<DataOutputStream> getOutStreamList( ArrayList<String> userList );
 
+	// gets the list of DataOutputStream for a bitmap of user IDs
+	public ArrayList<DataOutputStream> getOutStreamList( MemberBitmap userList );
+
+	// gets the ID of a user, -1 if the user is neither in the system nor in a group
+	public int getUserId( String userName );
+
+	// adds the members of a group to a bitmap of recipient user IDs
+	public void addMembersTo( String groupName, MemberBitmap recipients );
+
 	// checks whether a group exists
 	public boolean existsGroup( String groupName );
 
@@ -33,14 +42,17 @@ public interface MessageServer
 	// checks whether a user is a member of a group
 	public boolean isMember( String userName );
 
+	// gets the list of groups a user is a member of
+	public ArrayList<String> getUserGroups( String userName );
+
 
 	//** command methods **\\
 
 	// adds a group to the system
 	public void addGroup( String groupName);
 
-	// adds a userName and DataOutputStream Mapping to the userTable
-	public void addUserToSystem( String userName, DataOutputStream outStream );
+	// adds a userName and DataOutputStream Mapping to the userTable, returns false if the name is already taken
+	public boolean addUserToSystem( String userName, DataOutputStream outStream );
 
 	// adds a user to a group
 	public void addUserToGroup ( String userName, String groupName );
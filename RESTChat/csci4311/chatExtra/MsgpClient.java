@@ -32,6 +32,13 @@ public interface MsgpClient {
      */
 
     int send(MsgpMessage message);
+    /**
+     * Encodes the sending of several messages in one request.
+     *
+     * @param messages  the messages, with their senders and recipients
+     * @return          reply code of each message, in order
+     */
+    int[] sendBatch(List<MsgpMessage> messages);
     /**
      * Requests the list of groups.
      *
@@ -52,4 +59,13 @@ public interface MsgpClient {
      * @return          list of all messages sent to the group; null of none
      */
     List<MsgpMessage> history(String group);
+    /**
+     * Requests the messages of a group newer than a given one, numbered with getSeq.
+     *
+     * @param   group   group name
+     * @param   since   sequence number of the last message the caller has, 0 for all
+     * @param   limit   maximum number of messages
+     * @return          list of the messages, oldest first
+     */
+    List<MsgpMessage> history(String group, long since, int limit);
 }
@@ -0,0 +1,450 @@
+/**
+ * the msgp codec shared by the servers and the clients
+ * parses requests and messages in place, with a reusable View that only records offsets into the text,
+ * instead of splitting it into intermediate arrays and substrings
+ * a string is only made for a part the caller asks for, such as a user or group name used as a key
+ *
+ * the format of a message, as sent by clients and pushed by the server:
+ * 		msgp send
+ * 		from: <user>
+ * 		to: @<user>|#<group>
+ * 		to: ...
+ * 		<blank line>
+ * 		<single line message>
+ * 		<blank line>
+ * every other request is a single line of words separated by spaces: msgp <command> <arguments>
+ * a request, and the reply to it, may be preceded by a request ID line: msgp id <n>
+ *
+ * a history request may ask for part of the history: msgp history <group> since <seq> limit <count>
+ * its reply then has a seq: <first> <last> line after the reply line, the numbers of the messages it carries
+ *
+ * a batch request carries several messages, one after the other: msgp batch <count>
+ * its reply lists the reply code of each message on the line after the reply line
+ */
+
+package csci4311.chatExtra;
+
+import java.util.*;
+
+public class MsgpCodec
+{
+	//** encoding **\\
+
+	/**
+	 * encodes a message as a msgp send request
+	 *
+	 * @param out 		the builder to append the request to
+	 * @param from 		the sender
+	 * @param to 		the recipients, @<user> or #<group>
+	 * @param message 	the single line message
+	 * @return 			out
+	 **/
+	public static StringBuilder appendSend( StringBuilder out, String from, List<String> to, String message )
+	{
+		out.append( "msgp send\nfrom: " ).append( from ).append( '\n' );
+		for ( String t: to )
+			out.append( "to: " ).append( t ).append( '\n' );
+		return out.append( '\n' ).append( message ).append( "\n\n" );
+	}
+
+
+	/**
+	 * encodes messages as a msgp batch request
+	 *
+	 * @param out 		the builder to append the request to
+	 * @param messages 	the messages, with their senders and recipients
+	 * @return 			out
+	 **/
+	public static StringBuilder appendBatch( StringBuilder out, List<MsgpMessage> messages )
+	{
+		out.append( "msgp batch " ).append( messages.size() ).append( '\n' );
+		for ( MsgpMessage m: messages )
+			appendSend( out, m.getFrom(), m.getTo(), m.getMessage() );
+		return out;
+	}
+
+
+	//** request IDs **\\
+
+	// the line a request may start with to be tagged with an ID: msgp id <n>
+	// the reply to a tagged request starts with the same line, so a client can have several requests in flight
+	private static final String ID_LINE = "msgp id ";
+
+	// tags a request or reply with an ID
+	public static String tagWithId( long id, String text )
+	{
+		return ID_LINE + id + "\n" + text;
+	}
+
+	/**
+	 * gets the ID a request or reply is tagged with
+	 *
+	 * @param text 	the request or reply
+	 * @return 		the ID, -1 if the text is not tagged
+	 **/
+	public static long id( CharSequence text )
+	{
+		int end = indexOf( text, '\n', 0, text.length() );
+		if ( end < 0 || !startsWith( text, 0, end, ID_LINE ) || end == ID_LINE.length() || end - ID_LINE.length() > 18 )
+			return -1;
+
+		long id = 0;
+		for ( int i = ID_LINE.length(); i < end; i++ )
+		{
+			char c = text.charAt( i );
+			if ( c < '0' || c > '9' )
+				return -1;
+			id = id * 10 + ( c - '0' );
+		}
+		return id;
+	}
+
+	// the index the text after the ID line starts at, only meaningful if id( text ) is not -1
+	public static int afterId( CharSequence text )
+	{
+		return indexOf( text, '\n', 0, text.length() ) + 1;
+	}
+
+
+	//** decoding **\\
+
+	/**
+	 * decodes every message of a history reply, the messages following each other after the reply line
+	 *
+	 * @param reply 	the reply to a history request
+	 * @param into 		the list the decoded messages are added to
+	 **/
+	public static void decodeHistory( CharSequence reply, List<MsgpMessage> into )
+	{
+		View view = new View();
+
+		// the sequence number of the first message, if the reply has a seq: line
+		long seq = 0;
+		int line = indexOf( reply, '\n', 0, reply.length() ) + 1;
+		if ( line > 0 && startsWith( reply, line, reply.length(), "seq: " ) )
+			seq = parseNumber( reply, line + 5, 0 );
+
+		int start = 0;
+		while ( start < reply.length() )
+		{
+			// every message ends with a blank line, and the next one starts with msgp send
+			int end = start;
+			do
+			{
+				end = indexOf( reply, '\n', end + 1, reply.length() );
+			}
+			while ( end >= 0 && !startsWith( reply, end, reply.length(), "\n\nmsgp send" ) );
+			if ( end < 0 )
+				end = reply.length();
+
+			view.parse( reply, start, end );
+			into.add( new MsgpMessage( view.from(), null, view.body(), seq ) );
+			start = end + 2;
+			if ( seq > 0 )
+				seq++;
+		}
+	}
+
+	/**
+	 * decodes the reply to a batch request
+	 *
+	 * @param reply 	the reply
+	 * @param count 	the number of messages in the batch
+	 * @return 			the reply code of each message, all the code of the reply if it is not 200
+	 **/
+	public static int[] decodeBatch( CharSequence reply, int count )
+	{
+		int[] codes = new int[ count ];
+		int line = indexOf( reply, '\n', 0, reply.length() );
+		if ( !startsWith( reply, 0, reply.length(), "msgp 200" ) || line < 0 )
+		{
+			Arrays.fill( codes, parseCode( reply, 5 ) );
+			return codes;
+		}
+
+		int at = line + 1;
+		for ( int i = 0; i < count; i++ )
+		{
+			codes[i] = at < reply.length() ? parseCode( reply, at ) : 400;
+			int space = indexOf( reply, ' ', at, reply.length() );
+			at = space < 0 ? reply.length() : space + 1;
+		}
+		return codes;
+	}
+
+	// the number at an index of a text, up to the next space or new line, 400 if there is none
+	static int parseCode( CharSequence text, int at )
+	{
+		return (int) parseNumber( text, at, 400 );
+	}
+
+	// the number at an index of a text, otherwise if there is none
+	static long parseNumber( CharSequence text, int at, long otherwise )
+	{
+		long code = 0;
+		int i = at;
+		for ( ; i < text.length() && text.charAt( i ) >= '0' && text.charAt( i ) <= '9'; i++ )
+			code = code * 10 + ( text.charAt( i ) - '0' );
+		return i == at || i - at > 18 ? otherwise : code;
+	}
+
+	// the index of the first c in text[from,end), -1 if there is none
+	static int indexOf( CharSequence text, char c, int from, int end )
+	{
+		for ( int i = from; i < end; i++ )
+			if ( text.charAt( i ) == c )
+				return i;
+		return -1;
+	}
+
+	// checks whether text[at,end) starts with prefix
+	static boolean startsWith( CharSequence text, int at, int end, String prefix )
+	{
+		if ( end - at < prefix.length() )
+			return false;
+		for ( int i = 0; i < prefix.length(); i++ )
+			if ( text.charAt( at + i ) != prefix.charAt( i ) )
+				return false;
+		return true;
+	}
+
+
+
+	/**
+	 * a parsed request or message, which records where each part is in the text instead of copying it
+	 * a view is reused for one text after another, and is not thread-safe: each thread parsing keeps its own
+	 **/
+	public static class View
+	{
+		// the parsed text, and the part of it that was parsed
+		private CharSequence text;
+		private int start, end;
+
+		// the words of the first line, as start and end offsets
+		private int[] words = new int[ 16 ];
+		private int wordCount;
+
+		// the sender, -1 if there is no from line
+		private int fromStart, fromEnd;
+
+		// the recipients including their @ or #, as start and end offsets
+		private int[] to = new int[ 16 ];
+		private int toCount;
+
+		// the message after the blank line, -1 if there is none
+		private int bodyStart, bodyEnd;
+
+
+		/**
+		 * parses a whole text
+		 *
+		 * @param text 	the request or message
+		 * @return 		this view
+		 **/
+		public View parse( CharSequence text )
+		{
+			return parse( text, 0, text.length() );
+		}
+
+		/**
+		 * parses part of a text
+		 *
+		 * @param text 	the text holding the request or message
+		 * @param start	the index of its first character
+		 * @param end 	the index after its last character
+		 * @return 		this view
+		 **/
+		public View parse( CharSequence text, int start, int end )
+		{
+			this.text = text;
+			this.start = start;
+			this.end = end;
+			wordCount = 0;
+			toCount = 0;
+			fromStart = fromEnd = -1;
+			bodyStart = bodyEnd = -1;
+
+			// the words of the first line, trailing empty words are dropped like String.split does
+			int lineEnd = lineEnd( start );
+			int w = start;
+			while ( true )
+			{
+				int space = indexOf( text, ' ', w, lineEnd );
+				addWord( w, space < 0 ? lineEnd : space );
+				if ( space < 0 )
+					break;
+				w = space + 1;
+			}
+			while ( wordCount > 0 && words[ 2*wordCount - 1 ] == words[ 2*wordCount - 2 ] )
+				wordCount--;
+
+			// the header lines, up to the blank line
+			int line = lineEnd + 1;
+			while ( line < end && text.charAt( line ) != '\n' )
+			{
+				lineEnd = lineEnd( line );
+				if ( startsWith( text, line, lineEnd, "to:" ) )
+				{
+					addRecipient( Math.min( line + 4, lineEnd ), lineEnd );
+				}
+				else if ( fromStart < 0 && startsWith( text, line, lineEnd, "from" ) )
+				{
+					// the second word of the line
+					int space = indexOf( text, ' ', line, lineEnd );
+					fromStart = space < 0 ? lineEnd : space + 1;
+					int next = indexOf( text, ' ', fromStart, lineEnd );
+					fromEnd = next < 0 ? lineEnd : next;
+				}
+				line = lineEnd + 1;
+			}
+
+			// the single line message after the blank line
+			if ( line < end )
+			{
+				bodyStart = line + 1;
+				bodyEnd = lineEnd( Math.min( bodyStart, end ) );
+			}
+			return this;
+		}
+
+
+		//** query methods **\\
+
+		// checks whether the text is a msgp send request or message
+		public boolean isSend()
+		{
+			return startsWith( text, start, end, "msgp send" );
+		}
+
+		// the number of words of the first line
+		public int words()
+		{
+			return wordCount;
+		}
+
+		// checks whether word i of the first line is s, without making a string of it
+		public boolean wordEquals( int i, String s )
+		{
+			return i < wordCount && words[ 2*i + 1 ] - words[ 2*i ] == s.length() && startsWith( text, words[ 2*i ], end, s );
+		}
+
+		/**
+		 * gets a word of the first line
+		 *
+		 * @param i 	the index of the word, msgp is word 0
+		 * @return 		the word
+		 * @throws ArrayIndexOutOfBoundsException if the line has no such word, as indexing the split line would
+		 **/
+		public String word( int i )
+		{
+			if ( i >= wordCount )
+				throw new ArrayIndexOutOfBoundsException( i );
+			return text.subSequence( words[ 2*i ], words[ 2*i + 1 ] ).toString();
+		}
+
+		/**
+		 * gets an option of the first line, given as a name followed by a number: ... <name> <number> ...
+		 *
+		 * @param name 		the name of the option
+		 * @param otherwise the value if the option is not given
+		 * @return 			the value of the option
+		 * @throws NumberFormatException if the option is not followed by a number
+		 **/
+		public long option( String name, long otherwise )
+		{
+			for ( int i = 2; i < wordCount - 1; i++ )
+			{
+				if ( !wordEquals( i, name ) )
+					continue;
+
+				int s = words[ 2*i + 2 ];
+				int e = words[ 2*i + 3 ];
+				if ( e == s || e - s > 18 )
+					throw new NumberFormatException( "bad "+name+" in request" );
+				long value = 0;
+				for ( int j = s; j < e; j++ )
+				{
+					char c = text.charAt( j );
+					if ( c < '0' || c > '9' )
+						throw new NumberFormatException( "bad "+name+" in request" );
+					value = value * 10 + ( c - '0' );
+				}
+				return value;
+			}
+			return otherwise;
+		}
+
+		// getter for the sender, null if there is no from line
+		public String from()
+		{
+			return fromStart < 0 ? null : text.subSequence( fromStart, fromEnd ).toString();
+		}
+
+		// the number of recipients
+		public int recipients()
+		{
+			return toCount;
+		}
+
+		// checks whether recipient i is a user, a @<user>, rather than a group
+		public boolean isUser( int i )
+		{
+			return to[ 2*i + 1 ] > to[ 2*i ] && text.charAt( to[ 2*i ] ) == '@';
+		}
+
+		// gets the name of recipient i, without its @ or #
+		public String recipient( int i )
+		{
+			return text.subSequence( Math.min( to[ 2*i ] + 1, to[ 2*i + 1 ] ), to[ 2*i + 1 ] ).toString();
+		}
+
+		// getter for the message, null if there is none
+		public String body()
+		{
+			return bodyStart < 0 ? null : text.subSequence( bodyStart, bodyEnd ).toString();
+		}
+
+		// the index after the message, and the blank line after it, where the next message of a batch starts
+		public int messageEnd()
+		{
+			if ( bodyStart < 0 )
+				return end;
+			int next = Math.min( bodyEnd + 1, end );
+			return next < end && text.charAt( next ) == '\n' ? next + 1 : next;
+		}
+
+		// the parsed message, with its sender and content, recipients are not needed by the clients
+		public MsgpMessage toMessage()
+		{
+			return new MsgpMessage( from(), null, body() );
+		}
+
+
+		//** helper methods **\\
+
+		// the index of the end of the line starting at from
+		private int lineEnd( int from )
+		{
+			int newline = indexOf( text, '\n', from, end );
+			return newline < 0 ? end : newline;
+		}
+
+		private void addWord( int s, int e )
+		{
+			if ( 2*wordCount + 2 > words.length )
+				words = Arrays.copyOf( words, words.length * 2 );
+			words[ 2*wordCount ] = s;
+			words[ 2*wordCount + 1 ] = e;
+			wordCount++;
+		}
+
+		private void addRecipient( int s, int e )
+		{
+			if ( 2*toCount + 2 > to.length )
+				to = Arrays.copyOf( to, to.length * 2 );
+			to[ 2*toCount ] = s;
+			to[ 2*toCount + 1 ] = e;
+			toCount++;
+		}
+	}
+}
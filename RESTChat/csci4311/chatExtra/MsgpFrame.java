@@ -0,0 +1,121 @@
+/**
+ * a msgp frame encoded once and written to any number of connections
+ * the frame is encoded at most once per framing (text, binary, or WebSocket message), the first time a connection using that framing needs it,
+ * and the encoded bytes are shared, read-only, by every connection it is written to
+ *
+ * immutable, safe to share between threads
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+public class MsgpFrame
+{
+	//** instance variables **\\
+
+	// the type of the frame, one of the MsgpOutputStream frame types
+	private final byte type;
+
+	// the content of the frame
+	private final String text;
+
+	// the frame encoded in the text and binary framings, null until first needed
+	private volatile byte[] textBytes;
+	private volatile byte[] binaryBytes;
+
+	// the frame encoded as a WebSocket text message, null until first needed
+	private volatile byte[] webSocketBytes;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param type 	the type of the frame
+	 * @param text 	the content of the frame
+	 **/
+	public MsgpFrame( byte type, String text )
+	{
+		this.type = type;
+		this.text = text;
+	}
+
+
+	//** query methods **\\
+
+	// getter for the content of the frame
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * gets the frame encoded in a framing, encoding it if no connection has needed it yet
+	 * the returned array is shared and must not be modified
+	 *
+	 * @param binary 	true for the binary framing, false for the text framing
+	 * @return 			the encoded frame
+	 * @throws UTFDataFormatException if the frame is too large for the text framing
+	 **/
+	public byte[] encoded( boolean binary ) throws IOException
+	{
+		// two threads may both encode the frame, they produce the same bytes
+		if ( binary )
+		{
+			if ( binaryBytes == null )
+				binaryBytes = encodeBinary();
+			return binaryBytes;
+		}
+		if ( textBytes == null )
+			textBytes = encodeText();
+		return textBytes;
+	}
+
+
+	/**
+	 * gets the frame encoded as a WebSocket text message, encoding it if no WebSocket connection has needed it yet
+	 * the returned array is shared and must not be modified
+	 *
+	 * @return 	the unmasked text frame, as the server sends it
+	 **/
+	public byte[] encodedWebSocket()
+	{
+		if ( webSocketBytes == null )
+			webSocketBytes = WebSocketServer.frame( WebSocketServer.TEXT, text.getBytes( StandardCharsets.UTF_8 ) );
+		return webSocketBytes;
+	}
+
+
+	//** helper methods **\\
+
+	// writeUTF's format: [unsigned 16-bit length][modified UTF-8]
+	private byte[] encodeText() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( text.length() + 2 );
+		new DataOutputStream( bytes ).writeUTF( text );
+		return bytes.toByteArray();
+	}
+
+	// [varint payload length][byte type][UTF-8 payload]
+	private byte[] encodeBinary()
+	{
+		byte[] payload = text.getBytes( StandardCharsets.UTF_8 );
+		int size = 1;
+		for ( int v = payload.length >>> 7; v != 0; v >>>= 7 )
+			size++;
+
+		byte[] frame = new byte[ size + 1 + payload.length ];
+		int n = 0;
+		int value = payload.length;
+		while ( ( value & ~0x7f ) != 0 )
+		{
+			frame[n++] = (byte) ( ( value & 0x7f ) | 0x80 );
+			value >>>= 7;
+		}
+		frame[n++] = (byte) value;
+		frame[n++] = type;
+		System.arraycopy( payload, 0, frame, n, payload.length );
+		return frame;
+	}
+}
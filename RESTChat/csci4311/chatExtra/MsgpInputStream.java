@@ -0,0 +1,118 @@
+/**
+ * the stream msgp frames are read from, in the text or binary framing described in MsgpOutputStream
+ * also decodes binary frame headers from a ByteBuffer, for NioMsgpServer
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class MsgpInputStream extends DataInputStream
+{
+	//** constants **\\
+
+	// the largest payload accepted in the binary framing, protects the reader from a corrupt or hostile length
+	public static final int MAX_PAYLOAD = 16 << 20;
+
+
+	//** instance variables **\\
+
+	// whether frames are read in the binary framing
+	private volatile boolean binary;
+
+	// the type of the last binary frame read
+	private byte lastType;
+
+
+	// constructor, the stream starts in the text framing
+	public MsgpInputStream( InputStream in )
+	{
+		super( in );
+		binary = false;
+	}
+
+
+	//** query methods **\\
+
+	// checks whether frames are read in the binary framing
+	public boolean isBinary()
+	{
+		return binary;
+	}
+
+	// getter for the type of the last frame read, 0 in the text framing
+	public byte getLastType()
+	{
+		return binary ? lastType : 0;
+	}
+
+
+	//** command methods **\\
+
+	// switches the stream to the binary framing, or back to text
+	public void setBinary( boolean binary )
+	{
+		this.binary = binary;
+	}
+
+	/**
+	 * reads a frame in the framing of the stream
+	 *
+	 * @return 	the content of the frame
+	 **/
+	public String readFrame() throws IOException
+	{
+		if ( !binary )
+			return readUTF();
+
+		int length = 0;
+		for ( int shift = 0; ; shift += 7 )
+		{
+			if ( shift > 28 )
+				throw new IOException( "malformed frame length" );
+			int b = readUnsignedByte();
+			length |= ( b & 0x7f ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				break;
+		}
+		if ( length < 0 || length > MAX_PAYLOAD )
+			throw new IOException( "frame too large: "+length+" bytes" );
+
+		lastType = readByte();
+		byte[] payload = new byte[ length ];
+		readFully( payload );
+		return new String( payload, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * decodes the payload length of a binary frame at the position of a buffer, without moving the position
+	 *
+	 * @param in 	the buffer holding the beginning of a frame
+	 * @param size 	receives the number of bytes of the varint in size[0]
+	 * @return 		the payload length, or -1 if the buffer does not hold the whole varint yet
+	 * @throws IOException if the length is malformed or larger than MAX_PAYLOAD
+	 **/
+	public static int peekLength( ByteBuffer in, int[] size ) throws IOException
+	{
+		int length = 0;
+		int p = in.position();
+		for ( int shift = 0; ; shift += 7 )
+		{
+			if ( shift > 28 )
+				throw new IOException( "malformed frame length" );
+			if ( p == in.limit() )
+				return -1;
+			int b = in.get( p++ ) & 0xff;
+			length |= ( b & 0x7f ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				break;
+		}
+		if ( length < 0 || length > MAX_PAYLOAD )
+			throw new IOException( "frame too large: "+length+" bytes" );
+
+		size[0] = p - in.position();
+		return length;
+	}
+}
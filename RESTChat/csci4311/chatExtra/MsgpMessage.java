@@ -9,6 +9,7 @@ import java.util.List;
 public class MsgpMessage {
     private String from, message;
     private List<String> to;
+    private long seq;
 
     /**
      * @param   from    sender
@@ -16,11 +17,22 @@ public class MsgpMessage {
      * @param   message message content
      */
     public MsgpMessage(String from, List<String> to, String message) {
+        this(from, to, message, 0);
+    }
+    /**
+     * @param   from    sender
+     * @param   to      list of recipients
+     * @param   message message content
+     * @param   seq     sequence number of the message in the history it was read from
+     */
+    public MsgpMessage(String from, List<String> to, String message, long seq) {
         this.from = from;
         this.to = to;
         this.message = message;
+        this.seq = seq;
     }
     public String       getFrom()    {return from;}
     public List<String> getTo()      {return to;}
     public String       getMessage() {return message;}
+    public long         getSeq()     {return seq;}
 }
@@ -0,0 +1,170 @@
+/**
+ * the stream msgp frames are written to, in one of two framings:
+ * 		text: 	DataOutputStream.writeUTF, a 16-bit length and modified UTF-8, so at most 65535 bytes per frame
+ * 		binary: [varint payload length][byte type][UTF-8 payload], with no practical limit on the size of a frame
+ * a connection starts in the text framing, and both ends switch to binary once the client's
+ * "msgp framing binary" request has been answered with "msgp 200 OK"
+ *
+ * the stream of a WebSocketServer connection writes every frame as a WebSocket text message instead, and never switches
+ *
+ * writeFrame is synchronized on the stream, like every other writer of a msgp connection
+ * messages pushed by other senders go through the OutboundQueue of the stream, if it has one
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+
+public class MsgpOutputStream extends DataOutputStream
+{
+	//** frame types of the binary framing **\\
+	public static final byte REQUEST = 1;		// request from client to server
+	public static final byte REPLY = 2;			// reply from server to client
+	public static final byte MESSAGE = 3;		// chat message pushed from server to client
+
+
+	//** instance variables **\\
+
+	// whether frames are written in the binary framing
+	private volatile boolean binary;
+
+	// whether frames are written as WebSocket text messages
+	private final boolean webSocket;
+
+	// the queue of messages pushed to the connection, null to write them directly
+	private OutboundQueue outbound;
+
+
+	// constructor, the stream starts in the text framing
+	public MsgpOutputStream( OutputStream out )
+	{
+		this( out, false );
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param out 			the stream of the connection
+	 * @param webSocket 	true to write every frame as a WebSocket text message, false to start in the text framing
+	 **/
+	public MsgpOutputStream( OutputStream out, boolean webSocket )
+	{
+		super( out );
+		binary = false;
+		this.webSocket = webSocket;
+	}
+
+
+	//** query methods **\\
+
+	// checks whether frames are written in the binary framing
+	public boolean isBinary()
+	{
+		return binary;
+	}
+
+
+	// checks whether frames are written as WebSocket text messages, a framing the client cannot switch
+	public boolean isWebSocket()
+	{
+		return webSocket;
+	}
+
+	// getter for the queue of messages pushed to the connection, null if there is none
+	public OutboundQueue getOutbound()
+	{
+		return outbound;
+	}
+
+
+	//** command methods **\\
+
+	// setter for the queue of messages pushed to the connection
+	public void setOutbound( OutboundQueue outbound )
+	{
+		this.outbound = outbound;
+	}
+
+	// switches the stream to the binary framing, or back to text
+	public void setBinary( boolean binary )
+	{
+		this.binary = binary;
+	}
+
+	/**
+	 * writes a frame in the framing of the stream
+	 * the whole frame is handed to the underlying stream in a single write
+	 *
+	 * @param type 	the type of the frame, only sent in the binary framing
+	 * @param text 	the content of the frame
+	 **/
+	public void writeFrame( byte type, String text ) throws IOException
+	{
+		writeFrame( new MsgpFrame( type, text ) );
+	}
+
+	/**
+	 * writes an encoded frame in the framing of the stream, and flushes it
+	 * the frame is only encoded if no other stream with the same framing has written it yet
+	 *
+	 * @param frame 	the frame to write
+	 **/
+	public void writeFrame( MsgpFrame frame ) throws IOException
+	{
+		writeFrame( frame, true );
+	}
+
+	/**
+	 * writes an encoded frame in the framing of the stream
+	 *
+	 * @param frame 	the frame to write
+	 * @param flush 	false to leave the frame in the buffer of the underlying stream, to be written along with the next ones
+	 **/
+	public synchronized void writeFrame( MsgpFrame frame, boolean flush ) throws IOException
+	{
+		byte[] bytes = webSocket ? frame.encodedWebSocket() : frame.encoded( binary );
+		write( bytes, 0, bytes.length );
+		if ( flush )
+			flush();
+	}
+
+	/**
+	 * pushes a message to any stream of a msgp connection
+	 * enqueued if the stream has an OutboundQueue, written at once otherwise
+	 *
+	 * @param out 		the stream of the recipient
+	 * @param frame 	the message to push
+	 **/
+	public static void push( DataOutputStream out, MsgpFrame frame ) throws IOException
+	{
+		OutboundQueue queue = out instanceof MsgpOutputStream ? ((MsgpOutputStream) out).getOutbound() : null;
+		if ( queue != null )
+		{
+			queue.offer( frame );
+		}
+		else
+		{
+			synchronized( out ) { writeFrame( out, frame ); }
+		}
+	}
+
+	/**
+	 * writes an encoded frame to any stream of a msgp connection
+	 * streams that are not MsgpOutputStreams only know the text framing
+	 *
+	 * @param out 		the stream to write to
+	 * @param frame 	the frame to write
+	 **/
+	public static void writeFrame( DataOutputStream out, MsgpFrame frame ) throws IOException
+	{
+		if ( out instanceof MsgpOutputStream )
+		{
+			((MsgpOutputStream) out).writeFrame( frame );
+		}
+		else
+		{
+			byte[] bytes = frame.encoded( false );
+			out.write( bytes, 0, bytes.length );
+		}
+	}
+}
@@ -56,6 +56,16 @@ public interface MsgpServer
 	public String history(String group);
 
 
+	/** 
+	 * Method to handle framing request
+	 * switches the connection to another framing after the reply
+	 *
+	 * @param framing 	the framing requested by the client
+	 * @return 			the generated reply which includes Response code and message
+	 **/
+	public String framing(String framing);
+
+
 	/** 
 	 * Method to handle send request
 	 *
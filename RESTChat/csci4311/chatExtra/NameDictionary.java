@@ -0,0 +1,149 @@
+/**
+ * assigns dense int IDs to names, so that memberships can be stored as MemberBitmaps
+ * IDs are handed out from 0, and the IDs of the names no longer used are reused, so the dictionary stays as large
+ * as the number of names in use: a user in the system and every group bitmap holding an ID count as references to it,
+ * and once the last reference is released the name is forgotten and its ID is freed
+ * a freed ID is only reused once it has been free for REUSE_DELAY_MILLIS, so a send that looked it up
+ * just before the user left cannot deliver to the user that gets it next
+ *
+ * names are only written under the lock of the dictionary, and a slot is written before its ID is published, so they are read without it:
+ * getName is called for every recipient of every message, and must not serialize the senders
+ * the slot of a freed ID keeps its name until the ID is reused
+ */
+
+package csci4311.chatExtra;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class NameDictionary
+{
+	//** constants **\\
+
+	// how long a freed ID stays unused
+	private static final long REUSE_DELAY_MILLIS = 10000;
+
+
+	//** instance variables **\\
+
+	// the map of names in use and their IDs
+	private ConcurrentHashMap<String, Integer> ids;
+
+	// the names, indexed by ID; only the first count slots are used
+	// replaced by a larger copy once full, and a slot is written before its name is published in ids
+	private volatile String[] names;
+
+	// the number of references to each ID, guarded by the lock of the dictionary
+	private int[] refs;
+
+	// the number of IDs handed out so far, in use or free
+	private volatile int count;
+
+	// the freed IDs and the times they were freed, oldest first, guarded by the lock of the dictionary
+	private ArrayDeque<Integer> freeIds;
+	private ArrayDeque<Long> freedAt;
+
+
+	// constructor
+	public NameDictionary()
+	{
+		ids = new ConcurrentHashMap<String, Integer>();
+		names = new String[ 64 ];
+		refs = new int[ 64 ];
+		count = 0;
+		freeIds = new ArrayDeque<Integer>();
+		freedAt = new ArrayDeque<Long>();
+	}
+
+
+	//** query methods **\\
+
+	/**
+	 * gets the ID of a name without assigning one
+	 *
+	 * @param name 	the name to look up
+	 * @return 		the ID of the name, or -1 if the name is not in use
+	 **/
+	public int lookup( String name )
+	{
+		Integer id = ids.get( name );
+		return id == null ? -1 : id;
+	}
+
+	// gets the name of an ID, without locking
+	// the ID was handed out by acquire, so its slot was written before the caller could know it
+	public String getName( int id )
+	{
+		if ( id >= count )
+			throw new IndexOutOfBoundsException( "no name with ID " + id );
+		return names[ id ];
+	}
+
+	// getter for the number of names in use
+	public int size()
+	{
+		return ids.size();
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * gets the ID of a name and counts a reference to it, assigning a free ID if the name is not in use
+	 * every call must be matched by a call to release once the reference is dropped
+	 *
+	 * @param name 	the name to acquire
+	 * @return 		the ID of the name
+	 **/
+	public synchronized int acquire( String name )
+	{
+		Integer id = ids.get( name );
+		if ( id == null )
+		{
+			id = allocate();
+			names[ id ] = name;
+			ids.put( name, id );
+		}
+		refs[ id ]++;
+		return id;
+	}
+
+	/**
+	 * drops a reference to an ID, and frees the ID once the last one is dropped
+	 *
+	 * @param id 	the ID, as returned by acquire; -1 is ignored
+	 **/
+	public synchronized void release( int id )
+	{
+		if ( id < 0 || refs[ id ] == 0 )
+			return;
+		if ( --refs[ id ] == 0 )
+		{
+			ids.remove( names[ id ] );
+			freeIds.add( id );
+			freedAt.add( System.currentTimeMillis() );
+		}
+	}
+
+
+	//** helper methods **\\
+
+	// takes the oldest free ID if it has been free long enough, a new one otherwise, called under the lock
+	private int allocate()
+	{
+		if ( !freeIds.isEmpty() && System.currentTimeMillis() - freedAt.peek() >= REUSE_DELAY_MILLIS )
+		{
+			freedAt.poll();
+			return freeIds.poll();
+		}
+
+		int id = count;
+		if ( id == names.length )
+		{
+			names = Arrays.copyOf( names, id * 2 );
+			refs = Arrays.copyOf( refs, id * 2 );
+		}
+		count = id + 1;
+		return id;
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * a non-blocking front end for msgp connections, used instead of one TextMsgpServer thread per connection
+ * the connections are served by a few event loops (see NioServer), and are not read from while more than
+ * -Dchat.nio.maxPending bytes written to them are left for the socket to take
+ *
+ * the wire protocol is unchanged: requests and replies are writeUTF frames (an unsigned 16-bit length followed by modified UTF-8 bytes),
+ * or binary frames once the connection has switched, as described in MsgpOutputStream
+ * the requests of a connection are processed in order, so the frames after a switch are read in the binary framing
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+
+public class NioMsgpServer extends NioServer
+{
+	//** settings **\\
+	private static final int MAX_PENDING = Integer.getInteger( "chat.nio.maxPending", 256 << 10 );
+
+	//** constants **\\
+
+	// the largest frame writeUTF can produce: the length prefix and 65535 bytes
+	// the read buffer of a connection is this large, and only grows for a larger binary frame
+	private static final int MAX_FRAME = 2 + 65535;
+
+
+	//** instance variables **\\
+
+	// the channel connections are accepted from
+	private ServerSocketChannel acceptChannel;
+
+
+	/**
+	 * constructor
+	 * starts the event loops, connections are accepted once run is called
+	 *
+	 * @param server 			the server that processes the requests
+	 * @param acceptChannel 	the bound channel to accept connections from
+	 * @param threads 			the number of event loops
+	 **/
+	public NioMsgpServer( ChatServer server, ServerSocketChannel acceptChannel, int threads ) throws IOException
+	{
+		super( server, "msgp", threads, MAX_PENDING );
+		this.acceptChannel = acceptChannel;
+		start();
+	}
+
+
+	/**
+	 * accepts connections forever and hands each one to an event loop
+	 * blocks the calling thread, like ChatServer's accept loop
+	 **/
+	public void run() throws IOException
+	{
+		while ( true )
+		{
+			SocketChannel channel = acceptChannel.accept();
+			System.out.println( "Client Made Connection");
+			handOut( channel );
+		}
+	}
+
+	protected Connection newConnection( SocketChannel channel, EventLoop loop )
+	{
+		return new MsgpConnection( channel, loop );
+	}
+
+
+
+	// a client connection, whose requests are msgp frames
+	private class MsgpConnection extends Connection
+	{
+		MsgpConnection( SocketChannel channel, EventLoop loop )
+		{
+			super( channel, loop, false, MAX_FRAME );
+		}
+
+		// takes the next complete request out of the buffer, in the framing of the connection
+		// returns null if the buffer does not hold a whole frame yet, and grows it if the frame cannot fit
+		String nextRequest() throws IOException
+		{
+			if ( !outStream.isBinary() )
+			{
+				if ( in.remaining() < 2 )
+					return null;
+				int length = in.getShort( in.position() ) & 0xffff;
+				if ( in.remaining() < 2 + length )
+					return null;
+
+				// decode the frame exactly as the threaded server's readUTF would
+				byte[] frame = new byte[ 2 + length ];
+				in.get( frame );
+				return new DataInputStream( new ByteArrayInputStream( frame ) ).readUTF();
+			}
+
+			int[] size = new int[1];
+			int length = MsgpInputStream.peekLength( in, size );
+			if ( length < 0 )
+				return null;
+			int total = size[0] + 1 + length;
+			if ( in.remaining() < total )
+			{
+				if ( total > in.capacity() )
+				{
+					ByteBuffer larger = ByteBuffer.allocate( total );
+					larger.put( in );
+					larger.flip();
+					in = larger;
+				}
+				return null;
+			}
+
+			// skip the length and the type, every frame from a client is a request
+			in.position( in.position() + size[0] + 1 );
+			String request = new String( in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8 );
+			in.position( in.position() + length );
+			return request;
+		}
+	}
+}
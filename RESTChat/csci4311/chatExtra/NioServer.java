@@ -0,0 +1,483 @@
+/**
+ * the non-blocking machinery shared by the front ends that serve msgp connections on event loops (NioMsgpServer and WebSocketServer)
+ * a small, fixed number of event loops each watch many connections with a Selector,
+ * so the number of connections is no longer bounded by the number of threads the server can afford
+ *
+ * each connection has a TextMsgpServer, without a thread of its own, which processes the requests;
+ * the event loop only reads: the bytes read in a turn are handed to one of -Dchat.nio.workers worker threads, which takes the requests out of them
+ * in the framing of the front end and processes them, so a request waiting for the journal never holds up the event loop
+ * the connection is not read from again until the worker is done, so its requests are still processed one at a time, in order
+ *
+ * messages pushed to a connection by other senders wait in its OutboundQueue, which the event loop drains
+ * while the socket takes them, so a slow client's messages stay in its bounded queue
+ *
+ * writes are coalesced: the replies to every request read in one turn, and the messages waiting in the OutboundQueue,
+ * are written together with a single gathering write
+ * the bytes the socket cannot take yet are kept for the event loop to finish, and the connection is not read from
+ * while more than a front end's maxPending of them are left, so a client that sends requests without reading the replies is slowed down by TCP
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public abstract class NioServer
+{
+	//** settings **\\
+	private static final int WORKER_THREADS = Integer.getInteger( "chat.nio.workers", 64 );
+
+	//** constants **\\
+
+	// the most bytes of pushed messages taken out of an OutboundQueue for one gathering write
+	private static final int DRAIN_BYTES = 65536;
+
+	// the threads that process the requests read by the event loops, at most -Dchat.nio.workers of them
+	// a connection waits in the queue while they are all busy, and is not read from meanwhile, so its client is slowed down by TCP
+	// each connection is queued at most once, so the queue never holds more than the connections
+	private static final ExecutorService WORKERS = Executors.newFixedThreadPool( WORKER_THREADS, r -> {
+		Thread t = new Thread( r, "nio-worker" );
+		t.setDaemon( true );
+		return t;
+	});
+
+
+	//** instance variables **\\
+
+	// the server that processes the requests
+	protected ChatServer server;
+
+	// the event loops, connections are handed out in turn
+	private EventLoop[] loops;
+
+	// the loop the next accepted connection is handed to
+	private int next;
+
+	// the most bytes left for the socket to take before a connection is no longer read from
+	private int maxPending;
+
+
+	/**
+	 * constructor
+	 * creates the event loops, they run once start is called
+	 *
+	 * @param server 		the server that processes the requests
+	 * @param name 			the prefix of the names of the event loop threads
+	 * @param threads 		the number of event loops
+	 * @param maxPending 	the most bytes left for the socket to take before a connection is no longer read from
+	 **/
+	protected NioServer( ChatServer server, String name, int threads, int maxPending ) throws IOException
+	{
+		this.server = server;
+		this.maxPending = maxPending;
+		loops = new EventLoop[ Math.max( threads, 1 ) ];
+		for ( int i = 0; i < loops.length; i++ )
+		{
+			loops[i] = new EventLoop( name+"-loop-"+i );
+		}
+	}
+
+
+	//** command methods **\\
+
+	// starts the event loops
+	protected void start()
+	{
+		for ( EventLoop loop : loops )
+		{
+			loop.start();
+		}
+	}
+
+	// has the first event loop accept the connections of a non-blocking channel, must be called before start
+	protected void listen( ServerSocketChannel acceptChannel ) throws IOException
+	{
+		acceptChannel.register( loops[0].selector, SelectionKey.OP_ACCEPT );
+	}
+
+	// hands an accepted connection to the next event loop, in turn
+	protected synchronized void handOut( SocketChannel channel ) throws IOException
+	{
+		channel.configureBlocking( false );
+		channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+		loops[next].register( channel );
+		next = ( next + 1 ) % loops.length;
+	}
+
+	// creates the connection of the front end for an accepted channel, on the event loop that serves it
+	protected abstract Connection newConnection( SocketChannel channel, EventLoop loop );
+
+
+
+	// a thread that watches a set of connections, reads their requests and writes to them
+	// the first loop also accepts the connections of a channel given to listen
+	class EventLoop extends Thread
+	{
+		// the selector watching the connections of this loop
+		private Selector selector;
+
+		// the channels accepted for this loop and not yet registered with its selector
+		private ConcurrentLinkedQueue<SocketChannel> accepted;
+
+		// the connections with messages waiting in their OutboundQueue
+		private ConcurrentLinkedQueue<Connection> draining;
+
+		EventLoop( String name ) throws IOException
+		{
+			super( name );
+			setDaemon( true );
+			selector = Selector.open();
+			accepted = new ConcurrentLinkedQueue<SocketChannel>();
+			draining = new ConcurrentLinkedQueue<Connection>();
+		}
+
+		// hands a new connection to this loop, channels can only be registered by the loop itself
+		void register( SocketChannel channel )
+		{
+			accepted.add( channel );
+			selector.wakeup();
+		}
+
+		// tells this loop that a connection has messages waiting in its OutboundQueue
+		void drain( Connection c )
+		{
+			draining.add( c );
+			selector.wakeup();
+		}
+
+		// accepts the waiting connections and hands each one to a loop
+		private void accept( ServerSocketChannel acceptChannel ) throws IOException
+		{
+			SocketChannel channel;
+			while ( ( channel = acceptChannel.accept() ) != null )
+			{
+				handOut( channel );
+			}
+		}
+
+		public void run()
+		{
+			while ( true )
+			{
+				try
+				{
+					selector.select();
+				}
+				catch ( IOException e )
+				{
+					e.printStackTrace();
+					return;
+				}
+
+				SocketChannel channel;
+				while ( ( channel = accepted.poll() ) != null )
+				{
+					try
+					{
+						Connection c = newConnection( channel, this );
+						c.key = channel.register( selector, SelectionKey.OP_READ, c );
+					}
+					catch ( IOException e )
+					{
+						e.printStackTrace();
+					}
+				}
+
+				Connection d;
+				while ( ( d = draining.poll() ) != null )
+				{
+					try
+					{
+						d.drainOutbound();
+					}
+					catch ( IOException | CancelledKeyException e )
+					{
+						d.disconnect();
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while ( keys.hasNext() )
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if ( key.isValid() && key.isAcceptable() )
+					{
+						try
+						{
+							accept( (ServerSocketChannel) key.channel() );
+						}
+						catch ( IOException e )
+						{
+							e.printStackTrace();
+						}
+						continue;
+					}
+
+					Connection c = (Connection) key.attachment();
+					try
+					{
+						if ( key.isValid() && key.isWritable() )
+						{
+							c.writePending();
+							c.drainOutbound();
+						}
+						if ( key.isValid() && key.isReadable() )
+							c.read();
+					}
+					catch ( IOException | CancelledKeyException e )
+					{
+						c.disconnect();
+					}
+					catch ( RuntimeException e )
+					{
+						// a broken connection must not take down the other connections of the loop
+						e.printStackTrace();
+						c.disconnect();
+					}
+				}
+			}
+		}
+	}
+
+
+
+	// a client connection, with its partially read requests and the bytes the socket has not taken yet
+	// a front end takes the requests out of the bytes read, in its own framing
+	abstract class Connection extends OutputStream
+	{
+		// the channel of the connection and its registration with the event loop
+		SocketChannel channel;
+		SelectionKey key;
+
+		// the bytes read but not yet processed, in read mode while a worker processes them
+		ByteBuffer in;
+
+		// the size the read buffer goes back to once a large frame is processed
+		private int bufferSize;
+
+		// the bytes written to the connection that the socket has not taken yet, oldest first
+		private ArrayDeque<ByteBuffer> pending;
+
+		// set while the requests read in a turn are processed, their replies are written together at the end
+		private boolean corked;
+
+		// set from the moment requests are read until a worker has processed them, the connection is not read from meanwhile
+		private boolean processing;
+
+		// set once the last bytes to send are written, the connection is closed once the socket has taken them
+		boolean closing;
+
+		// the stream replies and messages to the user are written to, wraps this connection
+		MsgpOutputStream outStream;
+
+		// processes the requests of the connection
+		private TextMsgpServer handler;
+
+		// set once the connection is closed
+		private boolean closed;
+
+		/**
+		 * constructor
+		 *
+		 * @param channel 		the channel of the connection
+		 * @param loop 			the event loop serving the connection
+		 * @param webSocket 	whether replies and messages are written as WebSocket messages
+		 * @param bufferSize 	the initial size of the read buffer, it grows for larger frames
+		 **/
+		Connection( SocketChannel channel, EventLoop loop, boolean webSocket, int bufferSize )
+		{
+			this.channel = channel;
+			this.bufferSize = bufferSize;
+			in = ByteBuffer.allocate( bufferSize );
+			pending = new ArrayDeque<ByteBuffer>();
+			outStream = new MsgpOutputStream( this, webSocket );
+			handler = new TextMsgpServer( server, outStream, () -> loop.drain( this ), this::disconnect );
+			closing = false;
+			closed = false;
+		}
+
+		// takes the next complete request out of the read buffer, in the framing of the front end, on the worker
+		// returns null if the buffer does not hold a whole one yet, the buffer may be replaced by a larger one
+		abstract String nextRequest() throws IOException;
+
+		// reads what the socket has, on the event loop, and hands the complete requests to a worker
+		void read() throws IOException
+		{
+			synchronized( this )
+			{
+				if ( processing )
+					return;
+			}
+			if ( channel.read( in ) < 0 )
+				throw new EOFException();
+
+			synchronized( this )
+			{
+				processing = true;
+				writePending();
+			}
+			WORKERS.execute( this::process );
+		}
+
+		// processes every complete request read, on a worker, then lets the event loop read again
+		private void process()
+		{
+			try
+			{
+				in.flip();
+				String request;
+				synchronized( this ) { corked = true; }
+				try
+				{
+					while ( ( request = nextRequest() ) != null )
+					{
+						handler.reply( handler.handle( request ) );
+					}
+				}
+				finally
+				{
+					synchronized( this ) { corked = false; }
+				}
+				in.compact();
+
+				// give back the memory of a large frame once it is processed
+				if ( in.position() == 0 && in.capacity() > bufferSize )
+					in = ByteBuffer.allocate( bufferSize );
+
+				synchronized( this )
+				{
+					processing = false;
+				}
+				writePending();
+				drainOutbound();
+			}
+			catch ( IOException | CancelledKeyException e )
+			{
+				disconnect();
+			}
+			catch ( RuntimeException e )
+			{
+				// a malformed request must not take down the worker
+				e.printStackTrace();
+				disconnect();
+			}
+		}
+
+		// writes as much of the pending bytes as the socket takes, with a single gathering write,
+		// watches for writability until they are all written, and stops reading while too many are left
+		// closes the connection once the last bytes to send are written
+		// may be called by any thread, the event loop is woken up to watch the connection's new interests
+		void writePending() throws IOException
+		{
+			synchronized( this )
+			{
+				long left = 0;
+				if ( !pending.isEmpty() )
+				{
+					channel.write( pending.toArray( new ByteBuffer[ pending.size() ] ) );
+					while ( !pending.isEmpty() && !pending.peek().hasRemaining() )
+						pending.poll();
+					for ( ByteBuffer b : pending )
+						left += b.remaining();
+				}
+				if ( !closing || !pending.isEmpty() )
+				{
+					int ops = processing || closing || left > maxPending ? 0 : SelectionKey.OP_READ;
+					if ( !pending.isEmpty() )
+						ops |= SelectionKey.OP_WRITE;
+					if ( key.interestOps() != ops )
+					{
+						key.interestOps( ops );
+						key.selector().wakeup();
+					}
+					return;
+				}
+			}
+			disconnect();
+		}
+
+		// writes the messages waiting in the OutboundQueue, up to DRAIN_BYTES at a time in one gathering write
+		// the shared bytes of each frame are written as they are, without copying
+		// stops while bytes are left pending, the event loop drains again once writePending has written them,
+		// and while replies are being written, the worker drains once they are done
+		synchronized void drainOutbound() throws IOException
+		{
+			OutboundQueue outbound = outStream.getOutbound();
+			while ( pending.isEmpty() && !corked && !closed )
+			{
+				int bytes = 0;
+				MsgpFrame frame = null;
+				while ( bytes < DRAIN_BYTES && ( frame = outbound.poll() ) != null )
+				{
+					ByteBuffer b;
+					try
+					{
+						b = ByteBuffer.wrap( outStream.isWebSocket() ? frame.encodedWebSocket() : frame.encoded( outStream.isBinary() ) );
+					}
+					catch ( UTFDataFormatException e )
+					{
+						// too large for the text framing, the client never gets it
+						outbound.dropUnwritable();
+						continue;
+					}
+					pending.add( b );
+					bytes += b.remaining();
+				}
+				writePending();
+
+				// the queue is empty
+				if ( frame == null )
+					return;
+			}
+		}
+
+		// closes the connection and removes its user from the system
+		void disconnect()
+		{
+			synchronized( this )
+			{
+				if ( closed )
+					return;
+				closed = true;
+				pending.clear();
+			}
+			if ( key != null )
+				key.cancel();
+			try
+			{
+				channel.close();
+			}
+			catch ( IOException e ) {}
+			System.out.println( channel+" disconnected" );
+			handler.disconnected();
+		}
+
+
+		//** OutputStream methods, called by any thread writing to the user **\\
+
+		public void write( int b ) throws IOException
+		{
+			write( new byte[] { (byte) b }, 0, 1 );
+		}
+
+		// adds the bytes to the pending ones, and writes them unless the connection is corked
+		public synchronized void write( byte[] b, int off, int len ) throws IOException
+		{
+			if ( closed )
+				throw new IOException( "connection closed" );
+
+			// the caller may reuse its array, keep a copy
+			ByteBuffer copy = ByteBuffer.allocate( len );
+			copy.put( b, off, len );
+			copy.flip();
+			pending.add( copy );
+			if ( !corked )
+				writePending();
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/**
+ * the bounded queue of messages waiting to be written to one msgp connection
+ * senders only enqueue, so a client that reads slowly (or not at all) no longer holds up the fan-out of a message,
+ * or the later requests of the sender
+ *
+ * the queue is drained either by the shared writer threads, which block on the socket instead of the sender,
+ * or by whoever owns the connection (the event loops of NioServer), which is told when there is something to drain
+ *
+ * when the queue is full, the slow-consumer policy set with -Dchat.outbound.slowConsumer decides what happens:
+ * 		dropOldest 	(default) the oldest queued message is dropped to make room
+ * 		disconnect 	the client is disconnected
+ * 		spill 		the oldest queued message is moved to the user's history, their inbox, readable with GET /messages/@user
+ * the size of every queue is set with -Dchat.outbound.queueSize, and the number of writer threads with -Dchat.outbound.writers
+ *
+ * a writer thread writes every queued message into the buffer of the connection and flushes once the queue is empty,
+ * so a burst of messages goes out in a few large writes instead of one write per message
+ * the delay of a message is bounded: the buffer is also flushed once it has held messages for -Dchat.outbound.flushMillis
+ *
+ * the queue keeps counters of its activity, reported by GET /connections
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class OutboundQueue
+{
+	//** settings **\\
+	private static final int QUEUE_SIZE = Integer.getInteger( "chat.outbound.queueSize", 1024 );
+	private static final String SLOW_CONSUMER = System.getProperty( "chat.outbound.slowConsumer", "dropOldest" );
+	private static final long FLUSH_NANOS = Long.getLong( "chat.outbound.flushMillis", 2 ) * 1000000;
+	private static final int WRITER_THREADS = Integer.getInteger( "chat.outbound.writers", 64 );
+
+	// the threads that drain the queues of blocking connections, at most -Dchat.outbound.writers of them
+	// a queue waits for a free writer while they are all busy, and fills up meanwhile, so the slow-consumer policy applies
+	// each queue is scheduled at most once, so the writers' queue never holds more than the connections
+	private static final ExecutorService WRITERS = Executors.newFixedThreadPool( WRITER_THREADS, r -> {
+		Thread t = new Thread( r, "chat-writer" );
+		t.setDaemon( true );
+		return t;
+	});
+
+
+	//** instance variables **\\
+
+	// the messages waiting to be written, oldest first
+	private ArrayDeque<MsgpFrame> frames;
+
+	// the stream the writer threads write to, null if the queue is drained by its owner
+	private MsgpOutputStream out;
+
+	// told to drain the queue, when drained by its owner
+	private Runnable drainer;
+
+	// disconnects the client, for the disconnect policy
+	private Runnable disconnect;
+
+	// moves a message to the user's inbox, for the spill policy
+	private Consumer<String> spill;
+
+	// set while a drain is pending or running, so a single one runs at a time
+	private boolean scheduled;
+
+	// set once the queue no longer accepts messages
+	private boolean closed;
+
+	// run by the writer once its drain ends, when the queue was closed during it
+	private Runnable onClosed;
+
+	//** counters **\\
+	private long enqueued;
+	private long dropped;
+	private long spilled;
+	private int highWater;
+
+
+	/**
+	 * constructor for a queue drained by the writer threads
+	 *
+	 * @param out 			the stream of the connection, may block
+	 * @param disconnect 	disconnects the client
+	 * @param spill 		moves a message to the user's inbox
+	 **/
+	public OutboundQueue( MsgpOutputStream out, Runnable disconnect, Consumer<String> spill )
+	{
+		this( (Runnable) null, disconnect, spill );
+		this.out = out;
+	}
+
+	/**
+	 * constructor for a queue drained by its owner, which polls it until it is empty
+	 *
+	 * @param drainer 		called, on the thread of an enqueuing sender, when the owner should start polling
+	 * @param disconnect 	disconnects the client
+	 * @param spill 		moves a message to the user's inbox
+	 **/
+	public OutboundQueue( Runnable drainer, Runnable disconnect, Consumer<String> spill )
+	{
+		frames = new ArrayDeque<MsgpFrame>();
+		this.drainer = drainer;
+		this.disconnect = disconnect;
+		this.spill = spill;
+		scheduled = false;
+		closed = false;
+	}
+
+
+	//** query methods **\\
+
+	// getter for the number of queued messages
+	public synchronized int getDepth()
+	{
+		return frames.size();
+	}
+
+	// getter for the largest number of messages ever queued at once
+	public synchronized int getHighWater()
+	{
+		return highWater;
+	}
+
+	// getter for the number of messages enqueued so far
+	public synchronized long getEnqueued()
+	{
+		return enqueued;
+	}
+
+	// getter for the number of messages dropped by the dropOldest and disconnect policies, or for being too large
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+
+	// getter for the number of messages moved to the inbox by the spill policy
+	public synchronized long getSpilled()
+	{
+		return spilled;
+	}
+
+
+	//** command methods **\\
+
+	/**
+	 * enqueues a message for the connection, applying the slow-consumer policy if the queue is full
+	 * never blocks on the connection
+	 *
+	 * @param frame 	the message to write
+	 * @return 			false if the message was not enqueued, because the client is being disconnected
+	 **/
+	public boolean offer( MsgpFrame frame )
+	{
+		MsgpFrame spilledFrame = null;
+		boolean disconnecting = false;
+		boolean schedule = false;
+
+		synchronized( this )
+		{
+			if ( closed )
+				return false;
+
+			if ( frames.size() >= QUEUE_SIZE )
+			{
+				if ( SLOW_CONSUMER.equals( "disconnect" ) )
+				{
+					dropped += frames.size() + 1;
+					frames.clear();
+					closed = true;
+					disconnecting = true;
+				}
+				else if ( SLOW_CONSUMER.equals( "spill" ) )
+				{
+					spilledFrame = frames.poll();
+					spilled++;
+				}
+				else
+				{
+					frames.poll();
+					dropped++;
+				}
+			}
+
+			if ( !disconnecting )
+			{
+				frames.add( frame );
+				enqueued++;
+				highWater = Math.max( highWater, frames.size() );
+				schedule = !scheduled;
+				scheduled = true;
+			}
+		}
+
+		// call out without holding the lock of the queue
+		if ( disconnecting )
+		{
+			disconnect.run();
+			return false;
+		}
+		if ( spilledFrame != null )
+			spill.accept( spilledFrame.getText() );
+		if ( schedule )
+		{
+			if ( drainer != null )
+				drainer.run();
+			else
+				WRITERS.execute( this::drain );
+		}
+		return true;
+	}
+
+	/**
+	 * takes the oldest message out of the queue, for the owner draining it
+	 * once this returns null, the owner is told again with the drainer when a message arrives
+	 *
+	 * @return 	the oldest message, null if the queue is empty
+	 **/
+	public synchronized MsgpFrame poll()
+	{
+		MsgpFrame frame = frames.poll();
+		if ( frame == null )
+			scheduled = false;
+		return frame;
+	}
+
+	// counts a message the owner dropped because it is too large for the framing of the connection
+	public synchronized void dropUnwritable()
+	{
+		dropped++;
+	}
+
+	// stops accepting messages and drops the queued ones, once the connection is closed
+	public synchronized void close()
+	{
+		closed = true;
+		frames.clear();
+	}
+
+	/**
+	 * closes the queue, then runs an action once no writer thread uses the stream any more,
+	 * so the stream can be closed without cutting a write short
+	 * the action runs right away if no drain is pending, otherwise on the writer thread once the drain ends
+	 * only for a queue drained by the writer threads
+	 *
+	 * @param then 	the action, typically closing the stream
+	 **/
+	public void close( Runnable then )
+	{
+		synchronized( this )
+		{
+			close();
+			if ( scheduled )
+			{
+				onClosed = then;
+				return;
+			}
+		}
+		then.run();
+	}
+
+
+	//** helper methods **\\
+
+	// writes the queued messages to the stream until the queue is empty, run by a writer thread
+	// the messages are flushed together once the queue is empty, or once the oldest unflushed one has waited FLUSH_NANOS
+	// a message too large for the framing of the connection is dropped, any other error disconnects the client
+	// the drain only ends once the queue is still empty after the flush, so a single writer uses the stream at a time
+	private void drain()
+	{
+		MsgpFrame frame;
+		long unflushedSince = 0;
+		try
+		{
+			while ( true )
+			{
+				synchronized( this )
+				{
+					frame = frames.poll();
+				}
+				if ( frame == null )
+				{
+					out.flush();
+					unflushedSince = 0;
+					synchronized( this )
+					{
+						if ( frames.isEmpty() )
+							break;
+					}
+					continue;
+				}
+
+				try
+				{
+					out.writeFrame( frame, false );
+				}
+				catch ( UTFDataFormatException e )
+				{
+					// the frame failed to encode, nothing of it was written
+					dropUnwritable();
+					continue;
+				}
+
+				long now = System.nanoTime();
+				if ( unflushedSince == 0 )
+				{
+					unflushedSince = now;
+				}
+				else if ( now - unflushedSince >= FLUSH_NANOS )
+				{
+					out.flush();
+					unflushedSince = 0;
+				}
+			}
+		}
+		catch ( IOException e )
+		{
+			// the connection is broken, closing it makes its reader remove the user
+			close();
+			disconnect.run();
+		}
+		finished();
+	}
+
+	// ends a drain, and runs the action given to close if the queue was closed meanwhile
+	// a message that arrived since the queue was found empty starts the next drain
+	private void finished()
+	{
+		Runnable then;
+		boolean again;
+		synchronized( this )
+		{
+			then = onClosed;
+			onClosed = null;
+			again = !frames.isEmpty();
+			scheduled = again;
+		}
+		if ( then != null )
+			then.run();
+		else if ( again )
+			WRITERS.execute( this::drain );
+	}
+}
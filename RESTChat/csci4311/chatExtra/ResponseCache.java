@@ -0,0 +1,78 @@
+/**
+ * the serialized JSON documents of the REST directory resources: the list of users, the list of groups and the member list of each group
+ * a document is kept as the UTF-8 bytes of the response body, with the version of the resource it was built at,
+ * and is only served while the resource is still at that version
+ *
+ * the version counters of ChatServer are incremented by every command method that changes a resource,
+ * so a change invalidates the cached document of that resource, and only that one
+ * a document built from a state newer than the version it was read at is harmless: it is rebuilt once the version moves on
+ */
+
+package csci4311.chatExtra;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class ResponseCache
+{
+	//** instance variables **\\
+
+	// the cached documents, by path of the resource
+	private ConcurrentHashMap<String, Entry> entries;
+
+
+	// constructor
+	public ResponseCache()
+	{
+		entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+
+	//** query methods **\\
+
+	/**
+	 * gets the document of a resource at a version, building it if the cached one is of another version
+	 * two threads may both build it, they produce the same document
+	 *
+	 * @param path 		the path of the resource
+	 * @param version 	the version of the resource, read before the document is built
+	 * @param build 	builds the document
+	 * @return 			the UTF-8 bytes of the document, shared and not to be modified
+	 **/
+	public byte[] get( String path, long version, Supplier<String> build )
+	{
+		Entry cached = entries.get( path );
+		if ( cached != null && cached.version == version )
+			return cached.bytes;
+
+		Entry built = new Entry( version, build.get().getBytes( StandardCharsets.UTF_8 ) );
+
+		// a thread that read an older version must not replace the document of a newer one
+		entries.merge( path, built, ( old, fresh ) -> old.version > fresh.version ? old : fresh );
+		return built.bytes;
+	}
+
+
+	//** command methods **\\
+
+	// drops the document of a resource that no longer exists
+	public void remove( String path )
+	{
+		entries.remove( path );
+	}
+
+
+	// a document and the version of the resource it shows
+	private static class Entry
+	{
+		final long version;
+		final byte[] bytes;
+
+		Entry( long version, byte[] bytes )
+		{
+			this.version = version;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -31,8 +31,15 @@ public class RestMsgpClient{
  	// the DataOutputStream through which to send requests and messages
  	// the request to be send
  	private String request;
-	// the number of messages received
-	private int numRcvdMsg;
+	// the sequence number of the last message received, the next poll asks for the newer ones
+	private long lastSeq;
+
+	// how long the server holds a poll when there is no new message, and how long to wait after a failed poll
+	private static final long POLL_WAIT_MILLIS = 25000;
+	private static final long POLL_RETRY_MILLIS = 2000;
+
+	// the client the polls are sent with, its connection is kept from one poll to the next
+	private HttpClient pollClient;
  	
  	private String userName;
  	
@@ -57,8 +64,9 @@ public class RestMsgpClient{
  	{
  		this.userName = userName;
  		this.request = "";
- 		numRcvdMsg = 0;
+ 		lastSeq = 0;
  		connManager = new PoolingHttpClientConnectionManager();
+ 		pollClient = HttpClientBuilder.create().setConnectionManager(new PoolingHttpClientConnectionManager()).build();
  		
  		httpRequest = null;
  		response = null;
@@ -215,9 +223,10 @@ public class RestMsgpClient{
     	if (jsObject.toString().equals("{}"))
     		return null;
     	jsArray = jsObject.getJsonArray("messages");
+    	MsgpCodec.View view = new MsgpCodec.View();
     	for ( int i=0; i<jsArray.size();i++ )
     	{
-    		history.add( this.decodeMessage(jsArray.getString(i)));
+    		history.add( view.parse(jsArray.getString(i)).toMessage());
     	}
       	
     	this.connManager.shutdown();
@@ -234,12 +243,7 @@ public class RestMsgpClient{
 
     public int send(MsgpMessage msg) throws Exception
     {
-    	request = "msgp send\nfrom: "+msg.getFrom()+"\n";
-    	for ( String t: msg.getTo())
-    	{
-    		request += ("to: "+ t +"\n");
-    	}
-    	request += "\n"+msg.getMessage()+"\n\n";
+    	request = MsgpCodec.appendSend( new StringBuilder(), msg.getFrom(), msg.getTo(), msg.getMessage() ).toString();
     	
     	
     	this.connManager = new PoolingHttpClientConnectionManager();
@@ -256,45 +260,11 @@ public class RestMsgpClient{
       	return response.getStatusLine().getStatusCode();
     }
 
-	/**
-	 * helper method
-	 * decodes an incoming message
-	 * 
-	 * @param msd 	the message to be decoded
-	 * @return 		the MsgpMessage object that represents the decoded message 
-	 **/
-    private MsgpMessage decodeMessage(String msg)
-    {
-        // chain of msgp-specific procecures to decode a message into sender and message:
-
-        // get rid of the header, get straight to the sender line
-        msg = msg.substring( msg.indexOf("from") );
-
-        // split the above string in two by delimiter "\n"
-        // the first part is the sender line, save this
-		String sender = msg.split("\n",2)[0];
-
-		// split the sender line by delimiter " "
-		// the second part is the sender, save this
-		sender = sender.split(" ")[1];
-
-		// split the message in two by delimiter "\n\n"
-		// the second part is the message itself, save this
-		String message = msg.split("\n\n",2)[1];
-
-		// the message part may still contain the trailing new-line character
-		// this is not needed, get rid of it
-		if ( message.contains("\n") )
-			message = message.substring(0,message.indexOf("\n"));
-
-		// return the message in a MsgpMessage object, recipients are not needed here
-		return new MsgpMessage(sender,null,message);
-    }
-
 
     /** 
-     * the message-polling method called by RESTUserAgent 
-     * every two seconds to get new message on behalf of the user
+     * the message-polling method called by RESTUserAgent in a loop
+     * a long poll: the server answers as soon as there are new messages for the user,
+     * or with none once POLL_WAIT_MILLIS have passed
      **/
     public List<MsgpMessage> getNewMessages()
     {
@@ -302,26 +272,26 @@ public class RestMsgpClient{
     	
     	try
 		{
-    		PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
-	    	HttpClient client = HttpClientBuilder.create().setConnectionManager(connManager).build();
-	    	HttpGet httpRequest = new HttpGet("http://localhost:8311/messages/@"+userName);
-	    	HttpResponse response = client.execute(httpRequest);
+	    	HttpGet httpRequest = new HttpGet("http://localhost:8311/messages/@"+userName+"?since="+lastSeq+"&wait="+POLL_WAIT_MILLIS);
+	    	HttpResponse response = pollClient.execute(httpRequest);
 	    	BufferedReader reader = new BufferedReader (new InputStreamReader(response.getEntity().getContent()));
-	    	jsReader = Json.createReader(reader);
-	    	
-	    	this.connManager.shutdown();
+	    	JsonReader jsReader = Json.createReader(reader);
 	    	
-	    	jsObject = jsReader.readObject();
+	    	JsonObject jsObject = jsReader.readObject();
 	    	
 	    	if (jsObject.toString().equals("{}")) {} // no action
 	    	else
 	    	{
-	    		jsArray = jsObject.getJsonArray("messages");
-		    	for ( int i=this.numRcvdMsg; i<jsArray.size();i++ )
+	    		// only the messages since the last poll are sent, numbered from first
+	    		JsonArray jsArray = jsObject.getJsonArray("messages");
+	    		long first = jsObject.getJsonNumber("first").longValue();
+	    		MsgpCodec.View view = new MsgpCodec.View();
+		    	for ( int i=0; i<jsArray.size();i++ )
 		    	{
-		    		messages.add( this.decodeMessage(jsArray.getString(i)));
-		    		numRcvdMsg++;
+		    		view.parse(jsArray.getString(i));
+		    		messages.add( new MsgpMessage( view.from(), null, view.body(), first + i ));
 		    	}
+		    	lastSeq = jsObject.getJsonNumber("last").longValue();
 	    	}	
 	    	reader.close();
 	    	jsReader.close();
@@ -329,6 +299,16 @@ public class RestMsgpClient{
 		catch ( IOException e )
 		{
 			e.printStackTrace();
+
+			// do not hammer a server that is down
+			try
+			{
+				Thread.sleep( POLL_RETRY_MILLIS );
+			}
+			catch ( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+			}
 		}	
     	return messages;
     	
@@ -1,6 +1,10 @@
 /**
  * the class represent the REST server
  * listens to and process REST requests using curl
+ *
+ * GET /users, GET /groups and GET group/<group-id> are conditional: their responses carry an ETag derived from
+ * the version counters of ChatServer, and a request whose If-None-Match has the current ETag is answered 304
+ * without building the JSON document; otherwise the document is taken from a ResponseCache, serialized once per version
  */
 
 package csci4311.chatExtra;
@@ -8,12 +12,17 @@ package csci4311.chatExtra;
 import javax.json.*;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.sun.net.httpserver.*;
 
 public class RestServer {
+	// the start time of the server, part of every ETag, since the version counters start over with the process
+	private static final String EPOCH = Long.toString( System.currentTimeMillis(), 36 );
+
 	//** instance variables **\\
 	// the ChatServer object that maintains the chat system's data
 	private ChatServer server;
@@ -26,18 +35,113 @@ public class RestServer {
 	{
 		this.server = chatServer;
 
+		// the headers and the body of a response are written separately, do not let the body wait for the ack of the headers
+		// read when the first HttpServer is created, unless set on the command line
+		if ( System.getProperty( "sun.net.httpserver.nodelay" ) == null )
+			System.setProperty( "sun.net.httpserver.nodelay", "true" );
+
 		InetSocketAddress addr = new InetSocketAddress(restPort);
 		HttpServer httpServer = HttpServer.create(addr, 0);
+
+		// requests run on virtual threads if the chat server has them, on a pool of platform threads otherwise
+		ExecutorService executor = server.getTaskExecutor();
+		if ( executor == null )
+			executor = Executors.newCachedThreadPool();
+
+		// the serialized directory documents, shared by their handlers
+		ResponseCache cache = new ResponseCache();
 	
-		httpServer.createContext( "/users", new UsersHandler(server));	
-		httpServer.createContext( "/groups", new GroupsHandler(server));
-		httpServer.createContext( "/group/", new GroupHandler(server));	
-		httpServer.createContext( "/messages/", new MessagesHandler(server));
+		httpServer.createContext( "/users", new UsersHandler(server, cache));	
+		httpServer.createContext( "/groups", new GroupsHandler(server, cache));
+		httpServer.createContext( "/group/", new GroupHandler(server, cache));	
+		httpServer.createContext( "/messages/", new MessagesHandler(server, executor));
 		httpServer.createContext( "/message", new MessageHandler(server));	
-		httpServer.setExecutor( Executors.newCachedThreadPool());
+		httpServer.createContext( "/events/", new EventsHandler(server));
+		httpServer.createContext( "/connections", new ConnectionsHandler(server));
+		httpServer.setExecutor( executor );
 		httpServer.start();
 		System.out.println("RestServer is listening on port "+ restPort);
 	}
+
+	/**
+	 * sets the ETag of a response to a version of the resource it shows
+	 *
+	 * @param exchange 	the request
+	 * @param version 	the version of the resource, read before the response is built
+	 **/
+	static void setETag( HttpExchange exchange, long version )
+	{
+		exchange.getResponseHeaders().set( "ETag", "\"" + EPOCH + "-" + version + "\"" );
+	}
+
+	/**
+	 * sets the ETag of a response, and answers 304 if the client already has that version of the resource
+	 *
+	 * @param exchange 	the request
+	 * @param version 	the version of the resource, read before the response is built
+	 * @return 			true if 304 was sent and the exchange closed, false if the response is still to be sent
+	 **/
+	static boolean notModified( HttpExchange exchange, long version ) throws IOException
+	{
+		setETag( exchange, version );
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst( "If-None-Match" );
+		if ( ifNoneMatch == null )
+			return false;
+
+		// a list of ETags, any of which may be weak, or * for any version
+		String etag = exchange.getResponseHeaders().getFirst( "ETag" );
+		for ( String candidate : ifNoneMatch.split( "," ) )
+		{
+			candidate = candidate.trim();
+			if ( candidate.startsWith( "W/" ) )
+				candidate = candidate.substring( 2 );
+			if ( candidate.equals( etag ) || candidate.equals( "*" ) )
+			{
+				exchange.sendResponseHeaders( 304, -1 );
+				exchange.close();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * sends a 200 response with a body known in full, with its exact Content-Length
+	 *
+	 * @param exchange 	the request
+	 * @param body 		the bytes of the body
+	 **/
+	static void send( HttpExchange exchange, byte[] body ) throws IOException
+	{
+		exchange.sendResponseHeaders( 200, body.length );
+		OutputStream response = exchange.getResponseBody();
+		response.write( body );
+		response.close();
+	}
+
+	/**
+	 * serializes a list of names as a directory document: {"<name>":[...]}, or {} if there is none
+	 * the document ends with a line separator, like the responses printed with println
+	 *
+	 * @param name 		the name of the list
+	 * @param names 	the names
+	 * @return 			the document
+	 **/
+	static String directory( String name, Collection<String> names )
+	{
+		// use JsonObjectBuilder to build a Json-encoded response
+		JsonObjectBuilder jsObjectBuilder = Json.createObjectBuilder();
+		if (!names.isEmpty())
+		{
+			JsonArrayBuilder jsArrayBuilder = Json.createArrayBuilder();
+			for ( String n : names )
+			{
+				jsArrayBuilder.add(n);
+			}
+			jsObjectBuilder.add(name,jsArrayBuilder.build());
+		}
+		return jsObjectBuilder.build() + System.lineSeparator();
+	}
 }
 
 
@@ -48,7 +152,39 @@ public class RestServer {
 class UsersHandler implements HttpHandler {
 	private ChatServer server; 
 
-	public UsersHandler( ChatServer server )
+	// the serialized list of users
+	private ResponseCache cache;
+
+	public UsersHandler( ChatServer server, ResponseCache cache )
+	{
+		this.server = server;
+		this.cache = cache;
+	}
+	public void handle( HttpExchange exchange) throws IOException {
+		
+		// nothing to send if the client has the current list of users
+		long version = server.getUsersVersion();
+		if ( RestServer.notModified( exchange, version ) )
+			return;
+
+		// get the users list from ChatServer as a Json document, serialized again only once the list has changed
+		byte[] body = cache.get( "/users", version, () -> RestServer.directory( "users", server.getUsers() ) );
+
+		// send the response
+		Headers responseHeaders = exchange.getResponseHeaders();
+		responseHeaders.set( "Content-Type", "text/plain");
+		RestServer.send( exchange, body );
+	}	
+}
+
+
+// Handler for context /connections
+// GET /connections
+// reports the outbound queue of every msgp connection
+class ConnectionsHandler implements HttpHandler {
+	private ChatServer server; 
+
+	public ConnectionsHandler( ChatServer server )
 	{
 		this.server = server;
 	}
@@ -65,16 +201,23 @@ class UsersHandler implements HttpHandler {
 		// use JsonObjectBuilder to build a Json-encoded response
 		JsonObjectBuilder jsObjectBuilder = Json.createObjectBuilder();
 		
-		// get the users list from ChatServer, use it to create Json response
-		Set<String> users = server.getUsers();
-		if (!users.isEmpty())
+		// one object per connection, with the counters of its queue
+		Map<String, OutboundQueue> queues = server.getOutboundQueues();
+		if (!queues.isEmpty())
 		{
 			JsonArrayBuilder jsArrayBuilder = Json.createArrayBuilder();
-			for ( String u : users )
+			for ( Map.Entry<String, OutboundQueue> e : queues.entrySet() )
 			{
-				jsArrayBuilder.add(u);
+				OutboundQueue q = e.getValue();
+				jsArrayBuilder.add( Json.createObjectBuilder()
+					.add("user", e.getKey())
+					.add("depth", q.getDepth())
+					.add("highWater", q.getHighWater())
+					.add("enqueued", q.getEnqueued())
+					.add("dropped", q.getDropped())
+					.add("spilled", q.getSpilled()) );
 			}
-			jsObjectBuilder.add("users",jsArrayBuilder.build());
+			jsObjectBuilder.add("connections",jsArrayBuilder.build());
 		}
 		
 		// send the response
@@ -89,38 +232,29 @@ class UsersHandler implements HttpHandler {
 @SuppressWarnings("unchecked")
 class GroupsHandler implements HttpHandler {
 	private ChatServer server; 
-	public GroupsHandler ( ChatServer server )
+
+	// the serialized list of groups
+	private ResponseCache cache;
+
+	public GroupsHandler ( ChatServer server, ResponseCache cache )
 	{
 		this.server = server;
+		this.cache = cache;
 	}
 	public void handle( HttpExchange exchange) throws IOException {
 		
-		// send the responseHeader with the response code
-		Headers responseHeaders = exchange.getResponseHeaders();
-		responseHeaders.set( "Content-Type", "text/plain");
-		exchange.sendResponseHeaders( 200, 0);
+		// nothing to send if the client has the current list of groups
+		long version = server.getGroupsVersion();
+		if ( RestServer.notModified( exchange, version ) )
+			return;
+
+		// get the group list from ChatServer as a Json document, serialized again only once the list has changed
+		byte[] body = cache.get( "/groups", version, () -> RestServer.directory( "groups", server.getGroups() ) );
 
-		// the printstream to send response
-		PrintStream response = new PrintStream( exchange.getResponseBody());
-		
-		// use JsonObjectBuilder to build a Json-encoded response
-		JsonObjectBuilder jsObjectBuilder = Json.createObjectBuilder();
-		
-		// get the group list from ChatServer, use it to create Json response
-		Set<String> groups = server.getGroups();
-		if (!groups.isEmpty())
-		{
-			JsonArrayBuilder jsArrayBuilder = Json.createArrayBuilder();
-			for ( String g : groups )
-			{
-				jsArrayBuilder.add(g);
-			}
-			jsObjectBuilder.add("groups",jsArrayBuilder.build());
-		}
-		
 		// send the response
-		response.println( jsObjectBuilder.build() );
-		response.close();
+		Headers responseHeaders = exchange.getResponseHeaders();
+		responseHeaders.set( "Content-Type", "text/plain");
+		RestServer.send( exchange, body );
 	}		
 }
 
@@ -132,9 +266,14 @@ class GroupsHandler implements HttpHandler {
 // DELETE group/<group-id>/<user-id>
 class GroupHandler implements HttpHandler {
 	private ChatServer server; 
-	public GroupHandler ( ChatServer server )
+
+	// the serialized member list of each group
+	private ResponseCache cache;
+
+	public GroupHandler ( ChatServer server, ResponseCache cache )
 	{
 		this.server = server;
+		this.cache = cache;
 	}
 	public void handle( HttpExchange exchange) throws IOException {
 		String requestMethod = exchange.getRequestMethod();
@@ -164,8 +303,7 @@ class GroupHandler implements HttpHandler {
 			String userName = bodyLine.substring(5);
 			
 			// if the user is not yet added to the system, add him/her
-			if ( !server.existsUser(userName) ) 
-				server.addUserToSystem(userName,null);
+			server.addUserToSystem(userName,null);
 			 
 			// if the group does not yet exist, create it
 			if ( !server.existsGroup(groupName) )
@@ -210,8 +348,10 @@ class GroupHandler implements HttpHandler {
 			groupName = uri.substring(7);
 						
 			// in case of GET requests, if the group doesn't exist, return code 400 and end handling
+			// along with the member list of a removed group, if it was cached
 			if ( !server.existsGroup(groupName))
 			{	
+				cache.remove( "/group/" + groupName );
 				exchange.sendResponseHeaders( 400, 0);
 				response.close();
 				return;
@@ -223,88 +363,286 @@ class GroupHandler implements HttpHandler {
 
 		 * starting from here downward, all code applies for GET, POST, and DELETE requests of context /group/
 		 * they all need to return the membership of the group after all
+		 * a GET is answered 304 instead if the client has the current membership
 		 **/
-		exchange.sendResponseHeaders( 200, 0);
-		
-		// use JsonObjectBuilder to build a Json-encoded response
-		JsonObjectBuilder jsObjectBuilder = Json.createObjectBuilder();
-		
-		// get the user list of the group from ChatServer, use it to create Json response
-		ArrayList<String> users = server.getMembership(groupName);
-		if (!users.isEmpty())
+		long version = server.getGroupVersion( groupName );
+
+		// the request removed the group, as leaving ReservedGroup does: answer with its empty member list, which has no version
+		if ( version < 0 )
 		{
-			JsonArrayBuilder jsArrayBuilder = Json.createArrayBuilder();
-			for ( String u : users )
-			{
-				jsArrayBuilder.add(u);
-			}
-			jsObjectBuilder.add("users",jsArrayBuilder.build());
+			cache.remove( "/group/" + groupName );
+			RestServer.send( exchange, RestServer.directory( "users", Collections.emptyList() ).getBytes( StandardCharsets.UTF_8 ) );
+			return;
 		}
-		
+		if ( !requestMethod.equalsIgnoreCase( "GET" ) )
+			RestServer.setETag( exchange, version );
+		else if ( RestServer.notModified( exchange, version ) )
+			return;
+
+		// get the user list of the group from ChatServer as a Json document, serialized again only once the list has changed
+		String group = groupName;
+		byte[] body = cache.get( "/group/" + groupName, version, () -> RestServer.directory( "users", server.getMembership(group) ) );
+
 		// send the response
-		response.println( jsObjectBuilder.build() );
-		response.close();
+		RestServer.send( exchange, body );
 	}		
 }
 
 
 
 // Handler for context /messages/
-// Handle GET /messages/<group_id|user_id>
+// Handle GET /messages/<group_id|user_id>[?since=<seq>&limit=<count>&wait=<millis>]
+// the response has the sequence numbers of the first and last message it carries,
+// a client syncing incrementally asks for the messages since the last one it has
+//
+// with wait, a long poll: if there is no message since <seq>, the response is held until one arrives
+// or the wait expires, then it is sent empty; no thread is kept while the response is held
 class MessagesHandler implements HttpHandler {
+	// the longest a long poll is held
+	private static final long MAX_WAIT_MILLIS = 60000;
+
+	// expires the long polls
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor( r -> {
+		Thread t = new Thread( r, "rest-long-poll" );
+		t.setDaemon( true );
+		return t;
+	});
+
 	private ChatServer server; 
-	public MessagesHandler ( ChatServer server )
+
+	// the executor held responses are sent on
+	private Executor executor;
+
+	public MessagesHandler ( ChatServer server, Executor executor )
 	{
 		this.server = server;
+		this.executor = executor;
 	}
 	public void handle( HttpExchange exchange) throws IOException {
 
 		// send the responseHeader with the response code
 		Headers responseHeaders = exchange.getResponseHeaders();
 		responseHeaders.set( "Content-Type", "text/plain");
-		exchange.sendResponseHeaders( 200, 0);
 
-		// the printstream to send response
-		PrintStream response = new PrintStream( exchange.getResponseBody());
-		
-		// use JsonObjectBuilder to build a Json-encoded response
-		JsonObjectBuilder jsObjectBuilder = Json.createObjectBuilder();
-		
-		// get the target of the request from the URI
-		String target = exchange.getRequestURI().toString().substring(10); // cut off /messages/
-		
-		List<String> messages;
-		
-		// get the message list from ChatServer, use it to create Json response
-		// case: request history for a user
-		if (target.startsWith("@"))
+		// the part of the history to return, and how long to wait for it
+		long since, limit, wait;
+		try
 		{
-			messages = server.getUserHistory( target.substring(1)); // cut off "@"
+			since = queryParameter( exchange.getRequestURI().getRawQuery(), "since", 0 );
+			limit = queryParameter( exchange.getRequestURI().getRawQuery(), "limit", Integer.MAX_VALUE );
+			wait = queryParameter( exchange.getRequestURI().getRawQuery(), "wait", 0 );
 		}
-		
-		// case: request history for a group
-		else
+		catch ( NumberFormatException e )
+		{
+			exchange.sendResponseHeaders( 400, -1);
+			exchange.close();
+			return;
+		}
+
+		// get the target of the request from the URI
+		String target = exchange.getRequestURI().getPath().substring(10); // cut off /messages/
+
+		// the group must exist, as for the msgp history request
+		if ( !target.startsWith("@") && !server.existsGroup( target ) )
 		{
-			messages = server.getGroupHistory( target);
+			exchange.sendResponseHeaders( 400, -1);
+			exchange.close();
+			return;
 		}
+
+		if ( !respond( exchange, target, since, (int) Math.min( limit, Integer.MAX_VALUE ), wait > 0 ) )
+			new LongPoll( exchange, target, since, (int) Math.min( limit, Integer.MAX_VALUE ) ).start( Math.min( wait, MAX_WAIT_MILLIS ) );
+	}
+
+	/**
+	 * sends the messages of a target since a sequence number
+	 *
+	 * @param exchange 	the request to respond to
+	 * @param target 	@<user> or <group>
+	 * @param since 	the sequence number of the last message the client has
+	 * @param limit 	the maximum number of messages
+	 * @param orWait 	true to send nothing if there is no message, so the response can be held
+	 * @return 			false if nothing was sent
+	 **/
+	private boolean respond( HttpExchange exchange, String target, long since, int limit, boolean orWait ) throws IOException
+	{
+		// use JsonObjectBuilder to build a Json-encoded response
+		JsonObjectBuilder jsObjectBuilder = Json.createObjectBuilder();
 		
-		if (!messages.isEmpty())
+		JsonArrayBuilder jsArrayBuilder = Json.createArrayBuilder();
+		long[] first = { 0 };
+		int count = history( target ).forEachSince( since, limit, ( message, seq ) -> {
+			if ( first[0] == 0 )
+				first[0] = seq;
+			jsArrayBuilder.add( message );
+		});
+		if ( count == 0 && orWait )
+			return false;
+
+		if ( count > 0 )
 		{
-			JsonArrayBuilder jsArrayBuilder = Json.createArrayBuilder();
-			for ( String m : messages )
-			{
-				jsArrayBuilder.add(m);
-			}
 			jsObjectBuilder.add("messages",jsArrayBuilder.build());
+			jsObjectBuilder.add("first",first[0]);
+			jsObjectBuilder.add("last",first[0] + count - 1);
 		}
 		
 		// send the response
+		exchange.sendResponseHeaders( 200, 0);
+		PrintStream response = new PrintStream( exchange.getResponseBody());
 		response.println( jsObjectBuilder.build() );
 		response.close();
-	}		
+		return true;
+	}
+
+	// get the message list from ChatServer, of a user if the target starts with @, of a group otherwise
+	private HistoryBuffer history( String target )
+	{
+		if ( target.startsWith("@") )
+			return server.getUserHistory( target.substring(1)); // cut off "@"
+		return server.getGroupHistory( target);
+	}
+
+	// a response held until a message arrives or the wait expires
+	private class LongPoll implements Runnable
+	{
+		private HttpExchange exchange;
+		private String target;
+		private long since;
+		private int limit;
+
+		// the key the poll waits on in ChatServer: @<user> or #<group>
+		private String key;
+
+		// set once the response is sent, by the message or the timer, whichever comes first
+		private AtomicBoolean done;
+
+		// null until start has scheduled it, a short wait may expire before
+		private volatile ScheduledFuture<?> timeout;
+
+		LongPoll( HttpExchange exchange, String target, long since, int limit )
+		{
+			this.exchange = exchange;
+			this.target = target;
+			this.since = since;
+			this.limit = limit;
+			key = target.startsWith("@") ? target : "#"+target;
+			done = new AtomicBoolean( false );
+		}
+
+		// holds the response until a message arrives or the wait expires
+		void start( long wait )
+		{
+			timeout = TIMER.schedule( () -> executor.execute( this::complete ), wait, TimeUnit.MILLISECONDS );
+			server.onNextMessage( key, this );
+
+			// the wait may have expired before the poll was registered, and nothing would remove it
+			if ( done.get() )
+				server.cancelNextMessage( key, this );
+
+			// a message may have arrived before the poll was registered
+			else if ( history( target ).getLastSeq() > since )
+				run();
+		}
+
+		// called back by ChatServer on the thread adding the message, the response is sent on another
+		public void run()
+		{
+			executor.execute( this::complete );
+		}
+
+		// sends whatever there is, possibly nothing
+		private void complete()
+		{
+			if ( !done.compareAndSet( false, true ) )
+				return;
+			ScheduledFuture<?> t = timeout;
+			if ( t != null )
+				t.cancel( false );
+			server.cancelNextMessage( key, this );
+			try
+			{
+				respond( exchange, target, since, limit, false );
+			}
+			catch ( IOException e )
+			{
+				// the client gave up waiting
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * gets a numeric parameter of a query string
+	 *
+	 * @param query 	the raw query string, null if there is none
+	 * @param name 		the name of the parameter
+	 * @param otherwise the value if the parameter is not given
+	 * @return 			the value of the parameter
+	 * @throws NumberFormatException if the value is not a number, or is negative
+	 **/
+	static long queryParameter( String query, String name, long otherwise )
+	{
+		if ( query == null )
+			return otherwise;
+		for ( String p: query.split("&") )
+		{
+			if ( p.startsWith( name+"=" ) )
+			{
+				long value = Long.parseLong( p.substring( name.length()+1 ) );
+				if ( value < 0 )
+					throw new NumberFormatException( p );
+				return value;
+			}
+		}
+		return otherwise;
+	}
+}
+
+
+// Handler for context /events/
+// GET /events/<user_id>
+// streams the messages delivered to a REST user as Server-Sent Events, as they are delivered
+// a client sending a Last-Event-ID header first gets the messages it missed since that event
+// the response is held by the user's EventStream, not by a thread
+class EventsHandler implements HttpHandler {
+	private ChatServer server; 
+
+	public EventsHandler ( ChatServer server )
+	{
+		this.server = server;
+	}
+	public void handle( HttpExchange exchange) throws IOException {
+
+		// the stream of the user, if the user is a REST user
+		String userName = exchange.getRequestURI().getPath().substring( 8 );
+		EventStream stream = server.getEventStream( userName );
+		if ( !exchange.getRequestMethod().equalsIgnoreCase( "GET" ) || stream == null )
+		{
+			exchange.sendResponseHeaders( 400, -1 );
+			exchange.close();
+			return;
+		}
+
+		// an unreadable Last-Event-ID is ignored, the client then only gets new messages
+		long lastEventId = -1;
+		String header = exchange.getRequestHeaders().getFirst( "Last-Event-ID" );
+		if ( header != null )
+		{
+			try { lastEventId = Long.parseLong( header.trim() ); }
+			catch ( NumberFormatException e ) { lastEventId = -1; }
+		}
+
+		// send the responseHeader, the events follow as the messages are delivered
+		Headers responseHeaders = exchange.getResponseHeaders();
+		responseHeaders.set( "Content-Type", "text/event-stream");
+		responseHeaders.set( "Cache-Control", "no-cache");
+		exchange.sendResponseHeaders( 200, 0);
+		stream.attach( exchange, lastEventId );
+	}
 }
 
 
+
 //Handler for context /message
 // POST /message
 class MessageHandler implements HttpHandler {
@@ -322,31 +660,34 @@ class MessageHandler implements HttpHandler {
 		// the printstream to send response
 		PrintStream response = new PrintStream( exchange.getResponseBody());
 		
-		// The msgp message
-		String message = "";
+		// The msgp message, reconstructed line by line
+		StringBuilder message = new StringBuilder();
 		
 		// get the message from the request body
 		BufferedReader body = new BufferedReader( new InputStreamReader( exchange.getRequestBody()));
 		String bodyLine;
 		while ( (bodyLine = body.readLine()) != null)
 		{
-			// if recipient doesn't exist, response 402
-			if (( bodyLine.startsWith("to: @") && !server.existsUser(bodyLine.substring(5))) 
-			 || ( bodyLine.startsWith("to: #") && !server.existsGroup(bodyLine.substring(5))))
+			message.append( bodyLine ).append( '\n' );
+		}
+		
+		// in case the message file is mistakenly encoded to have too many ending new line
+		int length = message.length();
+		if( length >= 3 && message.charAt(length-1) == '\n' && message.charAt(length-2) == '\n' && message.charAt(length-3) == '\n' )
+		{
+			message.setLength( length-1 );
+		}
+		
+		// parse the message in place, and if a recipient doesn't exist, response 402
+		MsgpCodec.View view = new MsgpCodec.View().parse( message );
+		for ( int i = 0; i < view.recipients(); i++ )
+		{
+			if ( view.isUser(i) ? !server.existsUser( view.recipient(i)) : !server.existsGroup( view.recipient(i)))
 			{
 				exchange.sendResponseHeaders( 402, 0);
 				response.close();
 				return;
 			}
-			
-			// reconstruct the msgp message
-			message += bodyLine+"\n";
-		}
-		
-		// in case the message file is mistakenly encoded to have too many ending new line
-		if( message.endsWith("\n\n\n"))
-		{
-			message = message.substring(0, message.length()-1);
 		}
 		
 		// if no error happenned, proceed to response 200
@@ -355,7 +696,7 @@ class MessageHandler implements HttpHandler {
 		// construct a TextMsgpServer object to use it for sending msgp message
 		TextMsgpServer tms = new TextMsgpServer(server);
 		// call method send from TextMsgpServer to send the message
-		tms.send(message);
+		tms.send(message.toString());
 
 		
 		// send the response with empty Json object upon success
@@ -40,7 +40,7 @@ public class RestUserAgent extends Thread {
 		messageOut= "";
 		recipients = new ArrayList<String>();
 		
-		// start a thread to get new messages every two seconds
+		// start a thread to get new messages as they arrive
 		this.start();
 		
 		// creates a socket connecting with server at the specified port
@@ -280,20 +280,12 @@ public class RestUserAgent extends Thread {
 	
 	/** 
      * the message-listenner thread run this method
-     * polls the server every two seconds to get new message on behalf of the user
+     * polls the server for new messages on behalf of the user, each poll returns as soon as there are some
      **/
 	public void run()
 	{
 		while( true )
 		{
-			try
-			{
-				Thread.sleep(2000);
-			}
-			catch( InterruptedException ie)
-			{
-				ie.printStackTrace();
-			}
 			ArrayList<MsgpMessage> messages = (ArrayList<MsgpMessage>) msgp.getNewMessages();
 			
 			this.printMessages(messages);
@@ -4,43 +4,70 @@
  *
  * extends: Thread
  * maintains a separate thread dedicated to listenning to incoming messages from the server 
+ * every request is tagged with a request ID (see MsgpCodec) and the listener thread hands each reply
+ * to the caller waiting for it, so several threads can have requests in flight on the one connection
+ * whether the server tags its replies is checked when connecting; if it does not, requests are sent untagged
+ * and one at a time, a call waiting for the previous one to be answered
+ *
+ * implements: AsyncMsgpClient
+ * every request returns a future at once, the synchronous methods wait for it
+ *
+ * asks the server for the binary framing when connecting (see MsgpOutputStream), unless -Dchat.framing=text
+ * keeps the text framing if the server does not agree
  */
 
 package csci4311.chatExtra;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import java.net.*;
 
-public class TextMsgpClient extends Thread implements MsgpClient
+public class TextMsgpClient extends Thread implements MsgpClient, AsyncMsgpClient
  {	
+ 	// the framing to ask the server for
+ 	private static final String FRAMING = System.getProperty( "chat.framing", "binary" );
+
  	// Instance variables \\
- 	// the DataOutputStream through which to send requests and messages
- 	private DataOutputStream dos;
- 	// the DataInputStream through which to receive server replies
- 	private DataInputStream dis;
- 	// the request to be send
- 	private String request;
- 	// the server reply
- 	private String reply;
- 	// a variable to temporarily save the reply
- 	private String replyBuffer;
+ 	// the stream through which to send requests and messages
+ 	private MsgpOutputStream dos;
+ 	// the stream through which to receive server replies
+ 	private MsgpInputStream dis;
+ 	// the requests sent and not yet answered, by request ID, oldest first
+ 	private ConcurrentSkipListMap<Long,CompletableFuture<String>> pending;
+ 	// the ID of the last request sent
+ 	private long lastId;
+ 	// whether the server tags its replies with request IDs, so requests can be pipelined
+ 	private final boolean pipelined;
+ 	// held by the request in flight, when requests are not pipelined
+ 	private final Semaphore serial = new Semaphore( 1 );
+ 	// the error that ended the connection, null while it is open
+ 	private volatile IOException failure;
  	// the user agent that created this
  	CLIUserAgent userAgent;
+ 	// the view pushed messages are parsed with, only used by the listener thread
+ 	private MsgpCodec.View pushView = new MsgpCodec.View();
  	
  	// constructor
  	public TextMsgpClient(CLIUserAgent userAgent,Socket clientSocket) throws Exception
  	{
- 		this.dos = new DataOutputStream( clientSocket.getOutputStream() ) ;
- 		this.dis = new DataInputStream( clientSocket.getInputStream() ) ;
- 		this.request = "";
- 		this.reply = "";
+ 		this.dos = new MsgpOutputStream( clientSocket.getOutputStream() ) ;
+ 		this.dis = new MsgpInputStream( clientSocket.getInputStream() ) ;
+ 		this.pending = new ConcurrentSkipListMap<Long,CompletableFuture<String>>();
+ 		this.lastId = 0;
  		this.userAgent = userAgent;
 
+ 		// negotiate the framing before the listener thread starts reading
+ 		if ( FRAMING.equals("binary") )
+ 			this.negotiateBinary();
+ 		this.pipelined = this.negotiateIds();
+
  		// starts a thread to solely deal with receiving incoming messages
 		this.start();
  	}
 
+    //** synchronous API, waits for the replies of the asynchronous one **\\
+
  	/**
      * Encodes a user join request.
      *
@@ -50,21 +77,7 @@ public class TextMsgpClient extends Thread implements MsgpClient
      */
     public int join(String user, String group)
     {
-    	request = "msgp join "+user+" "+group;
-    	try
-    	{
-    		dos.writeUTF(request);
-
-			this.getReply();
-    	}
-    	catch (IOException e)
-    	{
-    		e.printStackTrace();
-    	}
-    	finally
-    	{
-    		return Integer.parseInt( reply.split(" ",3)[1] );
-    	}
+    	return await( this.joinAsync( user, group ), 400 );
     }
 
     /**
@@ -76,21 +89,7 @@ public class TextMsgpClient extends Thread implements MsgpClient
      */
     public int leave(String user, String group)
     {
-    	request = "msgp leave "+user+" "+group;
-    	try
-    	{
-    		dos.writeUTF(request);
-		
-    		this.getReply();
-    	}
-    	catch (IOException e)
-    	{
-    		e.printStackTrace();
-    	}
-    	finally
-    	{
-    		return Integer.parseInt( reply.split(" ",3)[1] );
-    	}
+    	return await( this.leaveAsync( user, group ), 400 );
 	}
 
 
@@ -101,31 +100,7 @@ public class TextMsgpClient extends Thread implements MsgpClient
      */
     public List<String> groups()
     {
-    	ArrayList<String> groups = null;
-    	request = "msgp groups";
-    	try
-    	{
-    		dos.writeUTF(request);
-		
-    		this.getReply();
-    	}
-    	catch (IOException e)
-    	{
-    		e.printStackTrace();
-    	}
-    	finally
-    	{
-    		// if the response is not "No result"
-    		if ( !reply.startsWith("msgp 201") )
-    		{
-    			// split the reply into group names using delimiter "\n" and save them to the array list 
-				groups = new ArrayList<String>( Arrays.asList(reply.split("\n")));
-
-				// remove the first string in the list, which is the protocol's response message
-				groups.remove(0);
-			}
-  			return groups;
-    	}
+    	return await( this.groupsAsync(), null );
     }
 
     /**
@@ -136,41 +111,7 @@ public class TextMsgpClient extends Thread implements MsgpClient
      */
     public List<String> users(String group)
     {
-    	ArrayList<String> users = null;
-    	request = "msgp users "+group;
-    	try
-    	{
-    		dos.writeUTF(request);
-		
-    		this.getReply();
-    	}
-    	catch (IOException e)
-    	{
-    		e.printStackTrace();
-    	}
-    	finally
-    	{
-			// no results: group empty
-    		/*if ( reply.startsWith("msgp 201") )
-    		{
-    			System.out.println(reply);
-    		}
-    		// error: no such group
-    		else if ( reply.startsWith("msgp 400") )
-    		{
-    			System.out.println(reply);
-    		}*/
-    		// valid result
-    		if ( reply.startsWith("msgp 200"))
-    		{
-    			// split the reply into user names using delimiter "\n" and save them to the array list
-				users = new ArrayList<String>( Arrays.asList(reply.split("\n")));
-				// remove the first string in the list, which is the protocol's response message
-				users.remove(0);
-			}
-
-    		return users;
-    	}
+    	return await( this.usersAsync( group ), null );
     }
 
     /**
@@ -181,42 +122,20 @@ public class TextMsgpClient extends Thread implements MsgpClient
      */
     public List<MsgpMessage> history(String group)
     {
-    	List<MsgpMessage> history = new ArrayList<MsgpMessage>();
-    	request = "msgp history "+group;
-    	try
-    	{
-    		dos.writeUTF(request);
-		
-    		this.getReply();
-
-    	}
-    	catch (IOException e)
-    	{
-    		e.printStackTrace();
-    	}
-    	finally
-    	{
-    		// prints reply message in cases of No result and Error
-    		//if ( reply.startsWith("msgp 201") || reply.startsWith("msgp 400") )
-    			//System.out.println( reply );
-
-    		// valid case
-    		if ( reply.startsWith("msgp 200") )
-    		{
-    			// split the history into individual messages
-				// also get rid of the not-needed header "msgp send" by including it in the split delimiter
-				String[] messages = reply.split("\n\nmsgp send");
+    	return await( this.historyAsync( group ), new ArrayList<MsgpMessage>() );
+    }
 
-				// decode all messages in the list and save them to the ArrayList history
-				for ( String m: messages )
-				{
-					history.add( decodeMessage( m ) );
-				}
-    		}
-			
-			
-    		return history;
-    	}
+    /**
+     * Requests the messages of a group newer than a given one, numbered with getSeq.
+     *
+     * @param   group   group name
+     * @param   since   sequence number of the last message the caller has, 0 for all
+     * @param   limit   maximum number of messages
+     * @return          list of the messages, oldest first
+     */
+    public List<MsgpMessage> history(String group, long since, int limit)
+    {
+    	return await( this.historyAsync( group, since, limit ), new ArrayList<MsgpMessage>() );
     }
 
 
@@ -229,93 +148,208 @@ public class TextMsgpClient extends Thread implements MsgpClient
 
     public int send(MsgpMessage msg)
     {
-    	request = "msgp send\nfrom: "+msg.getFrom()+"\n";
-    	for ( String t: msg.getTo())
+    	return await( this.sendAsync( msg ), 400 );
+    }
+
+    /**
+     * Encodes the sending of several messages in one request.
+     *
+     * @param messages  the messages, with their senders and recipients
+     * @return          reply code of each message, in order
+     */
+    public int[] sendBatch(List<MsgpMessage> messages)
+    {
+    	int[] failed = new int[ messages.size() ];
+    	Arrays.fill( failed, 400 );
+    	return await( this.sendBatchAsync( messages ), failed );
+    }
+
+
+    //** asynchronous API, returns before the reply arrives **\\
+
+    public CompletableFuture<Integer> joinAsync(String user, String group)
+    {
+    	return this.call( "msgp join "+user+" "+group ).thenApply( TextMsgpClient::replyCode );
+    }
+
+    public CompletableFuture<Integer> leaveAsync(String user, String group)
+    {
+    	return this.call( "msgp leave "+user+" "+group ).thenApply( TextMsgpClient::replyCode );
+    }
+
+    public CompletableFuture<List<String>> groupsAsync()
+    {
+    	return this.call( "msgp groups" ).thenApply( TextMsgpClient::names );
+    }
+
+    public CompletableFuture<List<String>> usersAsync(String group)
+    {
+    	return this.call( "msgp users "+group ).thenApply( TextMsgpClient::names );
+    }
+
+    public CompletableFuture<List<MsgpMessage>> historyAsync(String group)
+    {
+    	return this.call( "msgp history "+group ).thenApply( TextMsgpClient::messages );
+    }
+
+    public CompletableFuture<List<MsgpMessage>> historyAsync(String group, long since, int limit)
+    {
+    	return this.call( "msgp history "+group+" since "+since+" limit "+limit ).thenApply( TextMsgpClient::messages );
+    }
+
+    public CompletableFuture<Integer> sendAsync(MsgpMessage msg)
+    {
+    	String request = MsgpCodec.appendSend( new StringBuilder(), msg.getFrom(), msg.getTo(), msg.getMessage() ).toString();
+    	return this.call( request ).thenApply( TextMsgpClient::replyCode );
+    }
+
+    public CompletableFuture<int[]> sendBatchAsync(List<MsgpMessage> messages)
+    {
+    	String request = MsgpCodec.appendBatch( new StringBuilder(), messages ).toString();
+    	return this.call( request ).thenApply( reply -> MsgpCodec.decodeBatch( reply, messages.size() ) );
+    }
+
+
+	/**
+	 * helper method
+	 * asks the server to switch to the binary framing, both streams switch if it agrees
+	 * a server that does not know the framing request does not reply with 200, and the text framing is kept
+	 **/
+    private void negotiateBinary() throws IOException
+    {
+    	dos.writeUTF("msgp framing binary");
+    	if ( dis.readUTF().startsWith("msgp 200") )
+    	{
+    		dos.setBinary( true );
+    		dis.setBinary( true );
+    	}
+    }
+
+
+	/**
+	 * helper method
+	 * checks whether the server tags its replies with request IDs, with a tagged ping, whose reply is a few bytes
+	 * a server that knows request IDs echoes the ID; one that does not reply with an untagged, empty reply to the unknown request
+	 **/
+    private boolean negotiateIds() throws IOException
+    {
+    	dos.writeFrame( MsgpOutputStream.REQUEST, MsgpCodec.tagWithId( 0, "msgp ping" ) );
+    	return MsgpCodec.id( dis.readFrame() ) == 0;
+    }
+
+
+	/**
+	 * helper method 
+	 * sends a request tagged with a new request ID, without waiting for the reply
+	 * the listener thread completes the returned future once the reply with the same ID arrives
+	 * only blocks while the socket does not take the request, when the server is not keeping up,
+	 * or, if the server does not know request IDs, until the previous request is answered
+	 *
+	 * @param request 	the request to send
+	 * @return 			the future reply, without its ID line, failed if the connection is lost
+	 **/
+    private CompletableFuture<String> call(String request)
+    {
+    	CompletableFuture<String> reply = new CompletableFuture<String>();
+
+    	// without IDs, the only pending request is the one the next reply answers
+    	if ( !pipelined )
+    	{
+    		serial.acquireUninterruptibly();
+    		reply.whenComplete( ( r, e ) -> serial.release() );
+    	}
+
+    	synchronized( dos )
     	{
-    		request += ("to: "+ t +"\n");
+    		long id = ++lastId;
+    		pending.put( id, reply );
+    		try
+    		{
+    			if ( failure != null )
+    				throw failure;
+    			dos.writeFrame( MsgpOutputStream.REQUEST, pipelined ? MsgpCodec.tagWithId( id, request ) : request );
+    		}
+    		catch (IOException e)
+    		{
+    			pending.remove( id );
+    			reply.completeExceptionally( e );
+    		}
     	}
-    	request += "\n"+msg.getMessage()+"\n\n";
-    	
+    	return reply;
+    }
+
+
+	/**
+	 * helper method 
+	 * waits for the reply of a synchronous call
+	 *
+	 * @param reply 	the future reply
+	 * @param failed 	the result if the call fails
+	 * @return 			the reply, or failed
+	 **/
+    private static <T> T await(CompletableFuture<T> reply, T failed)
+    {
     	try
     	{
-    		dos.writeUTF(request);
-		
-    		this.getReply();
+    		return reply.join();
     	}
-    	catch (IOException e)
+    	catch (CompletionException | CancellationException e)
     	{
     		e.printStackTrace();
+    		return failed;
     	}
-    	finally
-    	{
-    		//System.out.println(reply);
-    		return Integer.parseInt( reply.split(" ",3)[1] );
-    	} 
     }
 
-    
 
 	/**
 	 * helper method 
-	 * gets response message from the listenner thread
-	 * saves it to instance variable reply
+	 * decodes the code of a reply: msgp <code> <text>
 	 **/
-    private void getReply()
+    private static int replyCode(String reply)
     {
-    	do
-		{
-			try
-			{
-				Thread.sleep(25);
-			}
-			catch( InterruptedException ie)
-			{
-				ie.printStackTrace();
-			}
-		}
-		while( replyBuffer.equals("") );
-		
-		reply = replyBuffer;
-		replyBuffer = "";
+    	int end = reply.indexOf( ' ', 5 );
+    	return Integer.parseInt( reply, 5, end < 0 ? reply.length() : end, 10 );
     }
 
 
 	/**
-	 * helper method
-	 * decodes an incoming message
-	 * 
-	 * @param msd 	the message to be decoded
-	 * @return 		the MsgpMessage object that represents the decoded message 
+	 * helper method 
+	 * decodes the messages of a history reply
+	 *
+	 * @return 	the messages, empty if the reply is not 200
 	 **/
-    private MsgpMessage decodeMessage(String msg)
+    private static List<MsgpMessage> messages(String reply)
     {
-        // chain of msgp-specific procecures to decode a message into sender and message:
-
-        // get rid of the header, get straight to the sender line
-        msg = msg.substring( msg.indexOf("from") );
+    	List<MsgpMessage> history = new ArrayList<MsgpMessage>();
 
-        // split the above string in two by delimiter "\n"
-        // the first part is the sender line, save this
-		String sender = msg.split("\n",2)[0];
+		// valid case: decode the messages following the reply line and save them to the ArrayList history
+		if ( reply.startsWith("msgp 200") )
+			MsgpCodec.decodeHistory( reply, history );
+		return history;
+    }
 
-		// split the sender line by delimiter " "
-		// the second part is the sender, save this
-		sender = sender.split(" ")[1];
 
-		// split the message in two by delimiter "\n\n"
-		// the second part is the message itself, save this
-		String message = msg.split("\n\n",2)[1];
+	/**
+	 * helper method 
+	 * decodes the names, of groups or users, listed one per line after the reply line
+	 *
+	 * @return 	the names, null if the reply is not 200
+	 **/
+    private static List<String> names(String reply)
+    {
+    	if ( !reply.startsWith("msgp 200") )
+    		return null;
 
-		// the message part may still contain the trailing new-line character
-		// this is not needed, get rid of it
-		if ( message.contains("\n") )
-			message = message.substring(0,message.indexOf("\n"));
+		// split the reply into names using delimiter "\n" and save them to the array list
+		ArrayList<String> names = new ArrayList<String>( Arrays.asList(reply.split("\n")));
 
-		// return the message in a MsgpMessage object, recipients are not needed here
-		return new MsgpMessage(sender,null,message);
+		// remove the first string in the list, which is the protocol's response message
+		names.remove(0);
+		return names;
     }
 
 
+
 	
     /** 
      * the message-listenner thread run this method
@@ -330,25 +364,55 @@ public class TextMsgpClient extends Thread implements MsgpClient
 		{
 			while( true )
 			{
-				messageIn = dis.readUTF();
+				messageIn = dis.readFrame();
 
 				// if receives a message, send it to user agent to display to the user
-				if (messageIn.startsWith("msgp send"))
+				// binary frames tell messages from replies by their type
+				if ( dis.isBinary() ? dis.getLastType() == MsgpOutputStream.MESSAGE : messageIn.startsWith("msgp send") )
 				{
-					userAgent.deliver( decodeMessage( messageIn ) );
+					// a client made without a user agent, such as a bot, ignores pushed messages
+					if ( userAgent != null )
+						userAgent.deliver( pushView.parse( messageIn ).toMessage() );
 				}
 				
 				// otherwise, its a reply 
-				// save it to the replyBuffer to be retrieved by whom it concerns 
+				// hand it to the caller waiting for the request with the same ID
 				else
 				{
-					replyBuffer = messageIn;
+					CompletableFuture<String> reply = null;
+					long id = MsgpCodec.id( messageIn );
+					if ( id >= 0 )
+					{
+						reply = pending.remove( id );
+						messageIn = messageIn.substring( MsgpCodec.afterId( messageIn ) );
+					}
+					// an untagged reply can only be matched while requests are not pipelined,
+					// otherwise there is no telling which request it answers, and it is dropped
+					else if ( !pipelined )
+					{
+						Map.Entry<Long,CompletableFuture<String>> oldest = pending.pollFirstEntry();
+						if ( oldest != null )
+							reply = oldest.getValue();
+					}
+					else
+					{
+						System.err.println( "Dropped a reply without a request ID: "+messageIn );
+					}
+
+					if ( reply != null )
+						reply.complete( messageIn );
 				}
 			}
 		}
 		catch ( IOException e )
 		{
 			e.printStackTrace();
+
+			// fail the requests still waiting for a reply, and the later ones
+			failure = e;
+			for ( CompletableFuture<String> reply: pending.values() )
+				reply.completeExceptionally( e );
+			pending.clear();
 		}	
 	} // end of run method
 	
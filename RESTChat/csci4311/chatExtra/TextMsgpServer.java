@@ -4,6 +4,7 @@
  *
  * extends: Thread
  * represents a thread which deals exclusively with a separate client connection's requests
+ * can also be used without a thread, by a front end that reads the requests itself (NioMsgpServer) and passes them to handle
  */
 
 package csci4311.chatExtra;
@@ -23,8 +24,14 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 	private Socket connectionSocket;
 
 	// the input and output streams of the connection socket 
-	private DataInputStream inStream;
-	private DataOutputStream outStream;
+	private MsgpInputStream inStream;
+	private MsgpOutputStream outStream;
+
+	// set when the client has asked for the binary framing, which starts after the reply
+	private boolean binaryRequested;
+
+	// the ID the request being handled is tagged with, its reply is tagged with it too, -1 if untagged
+	private long replyId = -1;
 
 	// the request received from client
 	private String request;
@@ -40,9 +47,23 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 
 	// the array list of DataOutputStreams through which to send a message 
 	ArrayList<DataOutputStream> outStreamList;
+
+	// the view the requests of this connection are parsed with, reused for every request
+	private MsgpCodec.View view;
+
+	// set while the messages of a batch are sent, the journal is then waited for once, for batchPosition,
+	// before the messages of the batch are pushed to their recipients' streams
+	private boolean batching;
+	private MessageJournal.Position batchPosition;
+	private ArrayList<MsgpFrame> batchFrames;
+	private ArrayList<ArrayList<DataOutputStream>> batchStreams;
+
+	// the recipients the last message of the batch was routed to, outStreamList holds their streams
+	private ArrayList<String> routedUsers;
+	private ArrayList<String> routedGroups;
 	
 	// the name of the user communicating with this Thread
-	String user ;
+	volatile String user ;
 
 
 	/**
@@ -61,12 +82,17 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 		recipientUsers = new ArrayList<String>();
 		recipientGroups = new ArrayList<String>();
 		outStreamList = new ArrayList<DataOutputStream>();
+		view = new MsgpCodec.View();
 
 		// create input and output stream attached to connection socket
 		try
 		{
-			inStream = new DataInputStream( connectionSocket.getInputStream());
-			outStream = new DataOutputStream( connectionSocket.getOutputStream());
+			inStream = new MsgpInputStream( connectionSocket.getInputStream());
+			// buffered, so the writer thread can write several messages at once; every reply is flushed
+			outStream = new MsgpOutputStream( new BufferedOutputStream( connectionSocket.getOutputStream(), 65536 ));
+
+			// messages from other senders are written by a writer thread, closing the socket stops the reader too
+			outStream.setOutbound( new OutboundQueue( outStream, this::closeConnection, this::spill ) );
 		}
 		catch( IOException e )
 		{
@@ -74,12 +100,29 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 		}
 	}
 	
+	/**
+	 * constructor for a connection whose requests are read by someone else
+	 *
+	 * @param server 		The server object that received the connection
+	 * @param outStream 	The stream that replies and messages to the user are written to
+	 * @param drainer 		Told when messages from other senders are waiting in the OutboundQueue of the stream
+	 * @param disconnect 	Disconnects the client
+	 **/
+	public TextMsgpServer( ChatServer server, MsgpOutputStream outStream, Runnable drainer, Runnable disconnect )
+	{
+		this( server );
+		this.user = null;
+		this.outStream = outStream;
+		outStream.setOutbound( new OutboundQueue( drainer, disconnect, this::spill ) );
+	}
+
 	public TextMsgpServer( ChatServer server) 
 	{
 		this.server = server;
 		recipientUsers = new ArrayList<String>();
 		recipientGroups = new ArrayList<String>();
 		outStreamList = new ArrayList<DataOutputStream>();
+		view = new MsgpCodec.View();
 	}
 
 
@@ -92,52 +135,11 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 			while( true ) 
 			{
 				// read the client request
-				request = inStream.readUTF();
-				System.out.println("\nRequest: " + request);
-
-				/**
-				 * if-else chain to process different requests
-				 * calls corresponding method to handle each request
-				 **/
-
-				// case: NOT send message request
-				if ( !request.startsWith("msgp send") )
-				{
-					// split the request into parts
-					String[] requestParts = request.split(" ");
-				
-					// case: msgp join <user> <group>
-					if ( requestParts[1].equals("join") )
-						reply = this.join( requestParts[2], requestParts[3] );
-
-					// case: msgp leave <user> <group>
-					else if ( requestParts[1].equals("leave") )
-						reply = this.leave( requestParts[2], requestParts[3] );
-
-					// case: msgp groups
-					else if ( requestParts[1].equals("groups") )
-						reply = this.groups();
-
-					// case: msgp users <group>
-					else if ( requestParts[1].equals("users") )
-						reply = this.users( requestParts[2] );
-
-					// case: msgp history <group>
-					else if ( requestParts[1].equals("history") )
-						reply = this.history( requestParts[2] );
-				}
-				
-				// case: send message request
-				else
-				{
-					reply = this.send(request);
-				}
-
-				// print out the generated reply to confirm proper response protocol
-				System.out.println("Response: "+reply);
+				request = inStream.readFrame();
+				reply = this.handle( request );
 
 				// send the reply to client
-				outStream.writeUTF(reply);
+				this.reply( reply );
 				reply = "";
 			} 
 		}
@@ -147,13 +149,154 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 			
 			// instead of printing exception message, simply announce that the connection is disconnected
 			System.out.println(connectionSocket+" disconnected");
-			server.removeUserFromSystem(user);
+			this.disconnected();
 			
 		}
 		
 	}
 
 
+	/**
+	 * processes a request and generates the reply
+	 *
+	 * @param request 	the request received from the client
+	 * @return 			the generated reply, to be sent back to the client
+	 **/
+	public String handle( String request )
+	{
+		String reply = "";
+		System.out.println("\nRequest: " + request);
+
+		// a request tagged with an ID has its reply tagged with the same ID, see MsgpCodec
+		replyId = MsgpCodec.id( request );
+		if ( replyId >= 0 )
+			request = request.substring( MsgpCodec.afterId( request ) );
+
+		/**
+		 * if-else chain to process different requests
+		 * calls corresponding method to handle each request
+		 **/
+
+		// parse the request in place, its words are compared without copying them
+		view.parse( request );
+
+		// case: NOT send message request
+		if ( !view.isSend() )
+		{
+			// case: msgp join <user> <group>
+			if ( view.wordEquals( 1, "join" ) )
+				reply = this.join( view.word(2), view.word(3) );
+
+			// case: msgp leave <user> <group>
+			else if ( view.wordEquals( 1, "leave" ) )
+				reply = this.leave( view.word(2), view.word(3) );
+
+			// case: msgp groups
+			else if ( view.wordEquals( 1, "groups" ) )
+				reply = this.groups();
+
+			// case: msgp users <group>
+			else if ( view.wordEquals( 1, "users" ) )
+				reply = this.users( view.word(2) );
+
+			// case: msgp history <group> [since <seq>] [limit <count>]
+			else if ( view.wordEquals( 1, "history" ) )
+			{
+				if ( view.words() <= 3 )
+					reply = this.history( view.word(2) );
+				else
+				{
+					try
+					{
+						long since = view.option( "since", 0 );
+						long limit = view.option( "limit", Integer.MAX_VALUE );
+						reply = this.history( view.word(2), since, (int) Math.min( limit, Integer.MAX_VALUE ) );
+					}
+					catch ( NumberFormatException e )
+					{
+						reply = "msgp 400 Error";
+					}
+				}
+			}
+
+			// case: msgp framing <text|binary>
+			else if ( view.wordEquals( 1, "framing" ) )
+				reply = this.framing( view.word(2) );
+
+			// case: msgp ping
+			else if ( view.wordEquals( 1, "ping" ) )
+				reply = this.ping();
+
+			// case: msgp batch <count>, followed by the messages
+			else if ( view.wordEquals( 1, "batch" ) )
+				reply = this.batch( request );
+		}
+		
+		// case: send message request, already parsed
+		else
+		{
+			reply = this.sendParsed( request );
+		}
+
+		// print out the generated reply to confirm proper response protocol
+		System.out.println("Response: "+reply);
+		return reply;
+	}
+
+	/**
+	 * sends a reply to the client, tagged with the ID of the request if it had one
+	 * locks the stream so the reply is not interleaved with messages written by other threads,
+	 * and switches the connection to the binary framing right after the reply to a framing request
+	 *
+	 * @param reply 	the reply generated by handle
+	 **/
+	public void reply( String reply ) throws IOException
+	{
+		if ( replyId >= 0 )
+		{
+			reply = MsgpCodec.tagWithId( replyId, reply );
+			replyId = -1;
+		}
+		synchronized( outStream )
+		{
+			outStream.writeFrame( MsgpOutputStream.REPLY, reply );
+			if ( binaryRequested )
+			{
+				binaryRequested = false;
+				outStream.setBinary( true );
+				if ( inStream != null )
+					inStream.setBinary( true );
+			}
+		}
+	}
+
+	// removes the user of this connection from the system once the connection is closed
+	public void disconnected()
+	{
+		OutboundQueue outbound = outStream != null ? outStream.getOutbound() : null;
+		if ( outbound != null )
+			outbound.close();
+		server.removeUserFromSystem(user);
+	}
+
+	// closes the connection socket, the reading thread then finds the connection closed
+	private void closeConnection()
+	{
+		try
+		{
+			connectionSocket.close();
+		}
+		catch ( IOException e ) {}
+	}
+
+	// moves a message the user could not keep up with to the user's history
+	private void spill( String message )
+	{
+		if ( user != null )
+			server.addUserHistory( user, message );
+	}
+
+
 	/** 
 	 * Method to handle join request
 	 * add a user to a group
@@ -167,11 +310,13 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 	public String join(String user, String group)
 	{
 		// if the user's DataOutputStream is not added to the system, add him/her
-			if ( !server.existsUser(user) ) 
-			{
-				server.addUserToSystem(user,outStream);
-				this.user = user;
-			}
+		// the name may be taken by another connection, even one joining at the same time: only the first one gets it
+		if ( !user.equals( this.user ) )
+		{
+			if ( !server.addUserToSystem(user,outStream) )
+				return "msgp 201 No result";
+			this.user = user;
+		}
 
 		// if the user is not a member of any group, add him/her to the group
 		if ( !server.isMember(user) ) 
@@ -207,7 +352,7 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 			return "msgp 400 Error";
 			
 		// if the user is not in the group, return 201
-		else if ( !server.getGroupTable().get(group).contains(user) )
+		else if ( !server.isMemberOfGroup(user, group) )
 			return "msgp 201 No result";
 			
 		// valid case, proceeds to remove the user from the group
@@ -277,6 +422,36 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 
 
 
+	/** 
+	 * Method to handle framing request
+	 * the reply is still sent in the current framing, the requested framing applies to every frame after it
+	 *
+	 * @param framing 	the framing requested by the client, only binary can be requested
+	 * @return 			the generated reply which includes Response code and message
+	 **/
+	public String framing(String framing)
+	{
+		// only a connection with a stream of its own can switch, and a WebSocket connection's messages are framed already
+		if ( !framing.equals("binary") || outStream == null || outStream.isWebSocket() )
+			return "msgp 400 Error";
+
+		binaryRequested = true;
+		return "msgp 200 OK";
+	}
+
+
+	/** 
+	 * Method to handle ping request
+	 * does nothing, a client sends it tagged with an ID to learn whether the server echoes request IDs
+	 *
+	 * @return 			the generated reply, always the same few bytes
+	 **/
+	public String ping()
+	{
+		return "msgp 200 OK";
+	}
+
+
 	/** 
 	 * Method to handle history request
 	 *
@@ -291,25 +466,53 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 	 		return "msgp 400 Error";
 	 	}
 	 	// if the group's history is empty, return No result
-	 	else if ( server.getGroupTable().get(group).getHistory().isEmpty() )
+	 	else if ( server.getGroupHistory(group).isEmpty() )
 	 	{
 	 		return "msgp 201 No result";
 	 	}
 	 	// valid case, return the reply with the requested history
 	 	else
 	 	{
-	 		String response = "msgp 200 OK\n";
-	 		// loop through the history to append messages to the reply
-	 		for ( String h: server.getGroupTable().get(group).getHistory() )
-	 		{
-	 			response += h;
-	 		}
-
-	 		return response;
+	 		StringBuilder response = new StringBuilder( "msgp 200 OK\n" );
+	 		// append the retained messages to the reply, straight from the history buffer
+	 		server.getGroupHistory(group).forEach( response::append );
+
+	 		return response.toString();
 	 	}
 	 	
 	}
 
+	/** 
+	 * Method to handle history request for part of the history, for clients that sync incrementally
+	 * the reply has a seq: <first> <last> line with the numbers of the messages it carries, see MsgpCodec
+	 *
+	 * @param group 	the name of the group to request history for
+	 * @param since 	the sequence number of the last message the client has, 0 for the whole history
+	 * @param limit 	the maximum number of messages to return
+	 * @return			the generated reply, msgp 201 No result if there is no newer message
+	 **/
+	public String history(String group, long since, int limit)
+	{
+		// if the group does not exist, return Error
+		if ( !server.existsGroup( group ) )
+	 		return "msgp 400 Error";
+
+		// append the messages to the reply straight from the history buffer, and remember the first number
+		StringBuilder response = new StringBuilder( "msgp 200 OK\n" );
+		long[] first = { 0 };
+		int count = server.getGroupHistory(group).forEachSince( since, limit, ( message, seq ) -> {
+			if ( first[0] == 0 )
+				first[0] = seq;
+			response.append( message );
+		});
+
+		if ( count == 0 )
+			return "msgp 201 No result";
+
+		response.insert( "msgp 200 OK\n".length(), "seq: "+first[0]+" "+( first[0] + count - 1 )+"\n" );
+		return response.toString();
+	}
+
 
 	/** 
 	 * Method to handle send request
@@ -319,48 +522,100 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 	 **/
 	public String send(String request)
 	{
-		// chain of msgp-specific procedures to extract the list of recipients from the request:
-		/** 
-		 * msgp send
-		 * from: <user>
-		 * to: @<user>|#<group>
-		 * to: ...
-		 * <cr><lf>
-		 * <single line message>
-		 * <cr><lf>
-		 **/
-
-		// split the request in two by delimitter "\n\n" and save the first part in 'temp',
-		// this gets rid of the message, which comes after a white space 
-		String temp = request.split("\n\n",2)[0];
-
-		// obtain a substring that starts with "to:",
-		// this get rid of the everything preceding and exposes the recipient list
-		String subString = temp.substring(temp.indexOf("to:"));
+		view.parse( request );
+		return this.sendParsed( request );
+	}
 
-		// split the substring by delimiter "\n"
-		// this gives an array of every recipient line: 'to: <recipient>'
-		String[] subStrings = subString.split("\n");
+	// handles a send request once the view has parsed it, see MsgpCodec for its format
+	private String sendParsed(String request)
+	{
+		// send the decoded message to its recipients
+		int replyCode = this.sendViewed( request );
 
-		// creates an array to hold the recipients
-		String[] recipients = new String[subStrings.length];
+		// checks the reply code and return reply messages accordingly
+		if ( replyCode == 400)
+			return "msgp 400 Error";
+		else
+			return "msgp 200 OK";
+	}
 
-		// loop through the substrings array
-		// cut off the "to: " part
-		// this leaves the recipient, save it to the recipient array
-		for( int i = 0; i < subStrings.length ; i++)
+	// sends the message the view has parsed, returns the reply code
+	private int sendViewed(String message)
+	{
+		// sort the recipients of the 'to: <recipient>' lines into users and groups,
+		// only their names are copied out of the request
+		recipientUsers.clear();
+		recipientGroups.clear();
+		for ( int i = 0; i < view.recipients(); i++ )
 		{
-			recipients[i] = subStrings[i].substring(4);
+			if ( view.isUser(i) )
+				recipientUsers.add( view.recipient(i) );
+			else
+				recipientGroups.add( view.recipient(i) );
 		}
+		return this.sendToRecipients( message );
+	}
 
-		// call method sendMessage to send the decoded message to its recipients
-		int replyCode = this.sendMessage( recipients , request );
 
-		// checks the reply code and return reply messages accordingly
-		if ( replyCode == 400)
+	/** 
+	 * Method to handle batch request
+	 * sends every message of the batch in one pass: the streams of the recipients are looked up once
+	 * for consecutive messages to the same recipients, and the journal is waited for once, at the end
+	 *
+	 * msgp batch <count>
+	 * <message>, in the format of a send request
+	 * ...
+	 *
+	 * @param request 	the request received from the client
+	 * @return 			msgp 200 OK, followed by a line with the reply code of each message in order,
+	 * 					or msgp 400 Error if the count is missing
+	 **/
+	public String batch(String request)
+	{
+		int count;
+		try
+		{
+			count = Integer.parseInt( view.word(2) );
+		}
+		catch ( RuntimeException e )
+		{
 			return "msgp 400 Error";
-		else
-			return "msgp 200 OK";
+		}
+
+		StringBuilder reply = new StringBuilder( "msgp 200 OK\n" );
+		int start = request.indexOf('\n') + 1;
+		batching = true;
+		batchPosition = null;
+		batchFrames = new ArrayList<MsgpFrame>();
+		batchStreams = new ArrayList<ArrayList<DataOutputStream>>();
+		routedUsers = null;
+		routedGroups = null;
+		try
+		{
+			for ( int i = 0; i < count; i++ )
+			{
+				int code = 400;
+				if ( start > 0 && start < request.length() )
+				{
+					// each message is stored and pushed on its own, so it is copied out of the batch
+					int end = view.parse( request, start, request.length() ).messageEnd();
+					if ( view.isSend() )
+						code = this.sendViewed( request.substring( start, end ) );
+					start = end;
+				}
+				reply.append( i == 0 ? "" : " " ).append( code );
+			}
+		}
+		finally
+		{
+			batching = false;
+			server.awaitDurable( batchPosition );
+			for ( int i = 0; i < batchFrames.size(); i++ )
+				this.push( batchFrames.get(i), batchStreams.get(i) );
+			batchFrames = null;
+			batchStreams = null;
+		}
+		return reply.toString();
 	}
 
 
@@ -378,7 +633,6 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 		// clear the recipient lists that persist from previous request
 		recipientUsers.clear();
 		recipientGroups.clear();
-		outStreamList.clear();
 
 		// analyze the recipient list to separate users from groups
 		for( String r: recipients )
@@ -389,6 +643,26 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 				recipientGroups.add( r.substring(1));
 		}
 
+		return this.sendToRecipients( message );
+	}
+
+	// sends a message to the users in recipientUsers and the groups in recipientGroups
+	private int sendToRecipients(String message)
+	{
+		// within a batch, a message to the same recipients as the last one goes to the same streams
+		boolean routed = batching && recipientUsers.equals( routedUsers ) && recipientGroups.equals( routedGroups );
+		if ( !routed )
+		{
+			// a new list, the one of the last message may still be waiting to be pushed to
+			outStreamList = new ArrayList<DataOutputStream>();
+			routedUsers = null;
+			routedGroups = null;
+		}
+
+		// the bitmap of IDs of all users to receive the message
+		// the union of bitmaps takes care of duplicates
+		MemberBitmap recipientIds = routed ? null : new MemberBitmap();
+
 		/**
 		 * loop for checking existence of the recipient users
 		 * calls server's method existsUser to do the checking
@@ -401,7 +675,11 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 			else
 			{
 				// add the message to user's history
-				server.addUserHistory(u, message);
+				this.awaitDurable( server.appendUserHistory(u, message) );
+				// a user who left meanwhile has no ID any more, and is skipped
+				int id = server.getUserId( u );
+				if ( !routed && id >= 0 )
+					recipientIds.add( id );
 			}
 		}
 	
@@ -410,7 +688,7 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 		 * calls server's method existsGroup to do the checking
 		 *
 		 * if exists:   add message to a group's history
-		 *				add all users in the group to the recipient user list 							
+		 *				add all users in the group to the recipient bitmap 							
 		 **/
 		for ( String g: recipientGroups )
 		{
@@ -421,33 +699,63 @@ public class TextMsgpServer extends Thread implements MsgpServer{
 			// if it does...
 			else
 			{	
-				// calling server's method addHistory to add the message to the group's history
-				server.addHistory( message, g );
+				// calling server's method appendHistory to add the message to the group's history
+				this.awaitDurable( server.appendHistory( message, g ) );
 
-				// add all users in the group to the recipient user list
-				// call server's method getMembership to get the list of users in the group
-				for ( String us : server.getMembership( g ) )
-				{
-					// avoid duplicates
-					if ( !recipientUsers.contains( us ) )
-					{
-						recipientUsers.add( us );
-					}
-				}
+				// add all users in the group to the recipient bitmap
+				if ( !routed )
+					server.addMembersTo( g, recipientIds );
 			}
 		}
 
 		// calling server's method getOutStreamList, get DataOutputStreams of all recipient users
-		outStreamList = server.getOutStreamList( recipientUsers );
+		if ( !routed )
+		{
+			outStreamList = server.getOutStreamList( recipientIds );
+			if ( batching )
+			{
+				routedUsers = new ArrayList<String>( recipientUsers );
+				routedGroups = new ArrayList<String>( recipientGroups );
+			}
+		}
 
-		// send the message to all recipient users
-		for ( DataOutputStream d: outStreamList )
+		// send the message to all recipient users, within a batch once the whole batch is on disk
+		MsgpFrame frame = new MsgpFrame( MsgpOutputStream.MESSAGE, message );
+		if ( batching )
 		{
-			try { d.writeUTF( message ); }
-			catch ( IOException e) { e.printStackTrace(); } 
+			batchFrames.add( frame );
+			batchStreams.add( outStreamList );
+		}
+		else
+		{
+			this.push( frame, outStreamList );
 		}
 
 		// return success code after the sending of message
 		return 200;
 	}
+
+	// pushes a message to recipient users
+	// the message is encoded once per framing and the same bytes are written to every recipient
+	// it is only enqueued for each recipient, a slow recipient does not hold up the others
+	private void push( MsgpFrame frame, ArrayList<DataOutputStream> streams )
+	{
+		for ( DataOutputStream d: streams )
+		{
+			try 
+			{ 
+				MsgpOutputStream.push( d, frame );
+			}
+			catch ( IOException e) { e.printStackTrace(); } 
+		}
+	}
+
+	// waits for the journal to write a change, or, within a batch, leaves it to the end of the batch
+	private void awaitDurable( MessageJournal.Position position )
+	{
+		if ( batching )
+			batchPosition = MessageJournal.Position.later( batchPosition, position );
+		else
+			server.awaitDurable( position );
+	}
 }
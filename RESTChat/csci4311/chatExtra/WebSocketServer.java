@@ -0,0 +1,358 @@
+/**
+ * a WebSocket front end for browser-style clients, on a port of its own, since the REST server cannot upgrade its connections
+ * implements the server side of RFC 6455 on a few non-blocking event loops (see NioServer, -Dchat.ws.threads, one per core by default):
+ * the opening handshake, then masked client frames and unmasked server frames, without extensions
+ *
+ * every text message from the client is a msgp request, processed by a TextMsgpServer without a thread,
+ * and every reply and pushed message is a text message to the client, so the client uses the same join, send
+ * and history requests as a msgp connection; the binary framing cannot be requested, the messages are framed already
+ * a message pushed to many WebSocket clients is encoded once, by its MsgpFrame, and the same bytes are written to each
+ *
+ * backpressure is applied per socket:
+ * 		messages pushed by other senders wait in the connection's OutboundQueue, bounded by its slow-consumer policy,
+ * 			and are only taken out of it once the socket has taken what was written before
+ * 		the connection is not read while more than -Dchat.ws.maxPending bytes of replies wait for the socket,
+ * 			so a client that sends requests without reading the replies is slowed down by TCP
+ * a client message larger than -Dchat.ws.maxMessage bytes closes the connection
+ */
+
+package csci4311.chatExtra;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class WebSocketServer extends NioServer
+{
+	//** settings **\\
+	private static final int MAX_MESSAGE = Integer.getInteger( "chat.ws.maxMessage", 1 << 20 );
+	private static final int MAX_PENDING = Integer.getInteger( "chat.ws.maxPending", 256 << 10 );
+
+	//** constants **\\
+
+	// the initial size of the read buffer of a connection, enough for the handshake; it grows for larger frames
+	private static final int BUFFER_SIZE = 8192;
+
+	// the string a client's key is hashed with to prove the server speaks WebSocket
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	//** opcodes **\\
+	static final int CONTINUATION = 0x0;
+	static final int TEXT = 0x1;
+	static final int BINARY = 0x2;
+	static final int CLOSE = 0x8;
+	static final int PING = 0x9;
+	static final int PONG = 0xa;
+
+	//** close codes **\\
+	private static final int PROTOCOL_ERROR = 1002;
+	private static final int UNSUPPORTED_DATA = 1003;
+	private static final int INVALID_DATA = 1007;
+	private static final int TOO_BIG = 1009;
+
+
+	/**
+	 * constructor
+	 * binds the port and starts the event loops, which accept and serve the connections
+	 *
+	 * @param server 	the server that processes the requests
+	 * @param port 		the port to listen to
+	 * @param threads 	the number of event loops
+	 **/
+	public WebSocketServer( ChatServer server, int port, int threads ) throws IOException
+	{
+		super( server, "ws", threads, MAX_PENDING );
+		ServerSocketChannel acceptChannel = ServerSocketChannel.open().bind( new InetSocketAddress( port ) );
+		acceptChannel.configureBlocking( false );
+		listen( acceptChannel );
+		start();
+		System.out.println("WebSocketServer is listening on port "+ port);
+	}
+
+	protected Connection newConnection( SocketChannel channel, EventLoop loop )
+	{
+		System.out.println( "WebSocket Client Made Connection");
+		return new WebSocketConnection( channel, loop );
+	}
+
+
+	/**
+	 * encodes an unmasked frame, as the server sends them
+	 *
+	 * @param opcode 	the opcode of the frame
+	 * @param payload 	the content of the frame
+	 * @return 			the header of the frame followed by the payload
+	 **/
+	static byte[] frame( int opcode, byte[] payload )
+	{
+		int length = payload.length;
+		int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+		byte[] frame = new byte[ header + length ];
+		frame[0] = (byte) ( 0x80 | opcode );
+		if ( header == 2 )
+		{
+			frame[1] = (byte) length;
+		}
+		else if ( header == 4 )
+		{
+			frame[1] = 126;
+			frame[2] = (byte) ( length >>> 8 );
+			frame[3] = (byte) length;
+		}
+		else
+		{
+			frame[1] = 127;
+			for ( int i = 0; i < 8; i++ )
+				frame[2+i] = (byte) ( (long) length >>> ( 56 - 8*i ) );
+		}
+		System.arraycopy( payload, 0, frame, header, length );
+		return frame;
+	}
+
+	// computes the Sec-WebSocket-Accept header answering a client's Sec-WebSocket-Key
+	static String acceptKey( String key )
+	{
+		try
+		{
+			MessageDigest sha1 = MessageDigest.getInstance( "SHA-1" );
+			byte[] hash = sha1.digest( ( key + ACCEPT_GUID ).getBytes( StandardCharsets.US_ASCII ) );
+			return Base64.getEncoder().encodeToString( hash );
+		}
+		catch ( NoSuchAlgorithmException e )
+		{
+			// every JVM has SHA-1
+			throw new IllegalStateException( e );
+		}
+	}
+
+
+
+	// a client connection: its handshake and its partially read frames
+	private class WebSocketConnection extends Connection
+	{
+		// set once the opening handshake has been answered
+		private boolean open;
+
+		// the fragments of a text message received so far, null if no fragmented message is in progress
+		private ByteArrayOutputStream fragments;
+
+		WebSocketConnection( SocketChannel channel, EventLoop loop )
+		{
+			super( channel, loop, true, BUFFER_SIZE );
+			open = false;
+		}
+
+		// answers the handshake first, then takes the next text message out of the buffer
+		String nextRequest() throws IOException
+		{
+			if ( !open && !handshake() )
+				return null;
+			return nextMessage();
+		}
+
+		// answers the opening handshake once the whole request is in the buffer
+		// returns false until the handshake is answered
+		private boolean handshake() throws IOException
+		{
+			int end = indexOfEmptyLine();
+			if ( end < 0 )
+			{
+				// the request does not fit in the buffer
+				if ( in.limit() == in.capacity() )
+					refuse( "431 Request Header Fields Too Large", "" );
+				return false;
+			}
+
+			String[] lines = new String( in.array(), in.arrayOffset() + in.position(), end - in.position(), StandardCharsets.ISO_8859_1 ).split( "\r\n" );
+			in.position( end + 4 );
+
+			// the header names are case-insensitive
+			HashMap<String, String> headers = new HashMap<String, String>();
+			for ( int i = 1; i < lines.length; i++ )
+			{
+				int colon = lines[i].indexOf( ':' );
+				if ( colon > 0 )
+					headers.put( lines[i].substring( 0, colon ).trim().toLowerCase(), lines[i].substring( colon + 1 ).trim() );
+			}
+
+			String key = headers.get( "sec-websocket-key" );
+			if ( !lines[0].startsWith( "GET " ) || key == null
+				|| !headers.getOrDefault( "upgrade", "" ).toLowerCase().contains( "websocket" )
+				|| !headers.getOrDefault( "connection", "" ).toLowerCase().contains( "upgrade" ) )
+			{
+				refuse( "400 Bad Request", "" );
+				return false;
+			}
+			if ( !"13".equals( headers.get( "sec-websocket-version" ) ) )
+			{
+				refuse( "426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n" );
+				return false;
+			}
+
+			String response = "HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + acceptKey( key ) + "\r\n\r\n";
+			write( response.getBytes( StandardCharsets.US_ASCII ) );
+			open = true;
+			return true;
+		}
+
+		// finds the empty line ending the handshake request, returns the index of its \r\n\r\n, -1 if not read yet
+		private int indexOfEmptyLine()
+		{
+			for ( int i = in.position(); i + 3 < in.limit(); i++ )
+			{
+				if ( in.get(i) == '\r' && in.get(i+1) == '\n' && in.get(i+2) == '\r' && in.get(i+3) == '\n' )
+					return i;
+			}
+			return -1;
+		}
+
+		// answers a handshake that cannot be accepted, and closes the connection
+		private void refuse( String status, String headers ) throws IOException
+		{
+			String response = "HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+			write( response.getBytes( StandardCharsets.US_ASCII ) );
+			in.position( in.limit() );
+			closing = true;
+		}
+
+		// takes the frames out of the buffer until a whole text message is read, answering the control frames on the way
+		// returns null if the buffer does not hold the rest of a message yet, and grows it if the next frame cannot fit
+		private String nextMessage() throws IOException
+		{
+			while ( !closing && in.remaining() >= 2 )
+			{
+				int start = in.position();
+				int b0 = in.get( start ) & 0xff;
+				int b1 = in.get( start + 1 ) & 0xff;
+				boolean fin = ( b0 & 0x80 ) != 0;
+				int opcode = b0 & 0x0f;
+
+				// no extension is negotiated, so no reserved bit may be set, and every client frame is masked
+				if ( ( b0 & 0x70 ) != 0 || ( b1 & 0x80 ) == 0 )
+					return fail( PROTOCOL_ERROR );
+
+				int header = 2;
+				long length = b1 & 0x7f;
+				if ( length == 126 )
+				{
+					header = 4;
+					if ( in.remaining() < header )
+						return null;
+					length = in.getShort( start + 2 ) & 0xffff;
+				}
+				else if ( length == 127 )
+				{
+					header = 10;
+					if ( in.remaining() < header )
+						return null;
+					length = in.getLong( start + 2 );
+				}
+
+				// control frames are never fragmented and carry at most 125 bytes
+				if ( opcode >= CLOSE && ( !fin || length > 125 ) )
+					return fail( PROTOCOL_ERROR );
+				int received = fragments != null ? fragments.size() : 0;
+				if ( length < 0 || length + received > MAX_MESSAGE )
+					return fail( TOO_BIG );
+
+				int total = header + 4 + (int) length;
+				if ( in.remaining() < total )
+				{
+					if ( total > in.capacity() )
+					{
+						ByteBuffer larger = ByteBuffer.allocate( total );
+						larger.put( in );
+						larger.flip();
+						in = larger;
+					}
+					return null;
+				}
+
+				// unmask the payload in place
+				byte[] array = in.array();
+				int mask = in.arrayOffset() + start + header;
+				int payload = mask + 4;
+				for ( int i = 0; i < length; i++ )
+				{
+					array[ payload + i ] ^= array[ mask + ( i & 3 ) ];
+				}
+				in.position( start + total );
+
+				switch ( opcode )
+				{
+					case TEXT:
+						if ( fragments != null )
+							return fail( PROTOCOL_ERROR );
+						if ( fin )
+							return decode( array, payload, (int) length );
+						fragments = new ByteArrayOutputStream();
+						fragments.write( array, payload, (int) length );
+						break;
+
+					case CONTINUATION:
+						if ( fragments == null )
+							return fail( PROTOCOL_ERROR );
+						fragments.write( array, payload, (int) length );
+						if ( fin )
+						{
+							byte[] message = fragments.toByteArray();
+							fragments = null;
+							return decode( message, 0, message.length );
+						}
+						break;
+
+					case PING:
+						write( frame( PONG, Arrays.copyOfRange( array, payload, payload + (int) length ) ) );
+						break;
+
+					case PONG:
+						break;
+
+					case CLOSE:
+						// echo the status code of the client, if it sent one
+						write( frame( CLOSE, Arrays.copyOfRange( array, payload, payload + Math.min( (int) length, 2 ) ) ) );
+						closing = true;
+						return null;
+
+					case BINARY:
+						return fail( UNSUPPORTED_DATA );
+
+					default:
+						return fail( PROTOCOL_ERROR );
+				}
+			}
+			return null;
+		}
+
+		// decodes the payload of a text message, which must be valid UTF-8
+		private String decode( byte[] bytes, int offset, int length ) throws IOException
+		{
+			try
+			{
+				return StandardCharsets.UTF_8.newDecoder().decode( ByteBuffer.wrap( bytes, offset, length ) ).toString();
+			}
+			catch ( CharacterCodingException e )
+			{
+				return fail( INVALID_DATA );
+			}
+		}
+
+		// starts the closing handshake after an error of the client, returns null to stop reading
+		private String fail( int code ) throws IOException
+		{
+			write( frame( CLOSE, new byte[] { (byte) ( code >>> 8 ), (byte) code } ) );
+			in.position( in.limit() );
+			closing = true;
+			return null;
+		}
+	}
+}